@@ -0,0 +1,42 @@
+package sprite2asm.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+// Building the charset and charmap of a multicolor char screen, including deduplication
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CharmapBenchmark {
+
+    @Param({"small", "medium", "large"})
+    public String size;
+
+    private File dir;
+    private Object graphics;
+
+    @Setup
+    public void setup() throws Throwable {
+        dir = Inputs.directory();
+        int[] screen = Inputs.screenSize(size);
+        File file = Inputs.charScreen(dir, "screen-ch00-mc12-bg0-cm5.png", screen[0], screen[1], Inputs.charCount(size), 2);
+        graphics = Targets.load(file.getPath(), "");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Inputs.delete(dir);
+    }
+
+    @Benchmark
+    public Object buildCharmap() throws Throwable {
+        Targets.BUILD_CHARMAP.invoke(graphics);
+        return graphics;
+    }
+}
@@ -0,0 +1,547 @@
+package sprite2asm.bench;
+
+import sprite2asm.Sprite2asm;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Converts inputs with each fast path of the converters and compares the bytes they output with a reference
+// conversion built only from extractObject, isHiresChar, findInSet and findTile, one cell at a time
+// (and LDtk entities grouped per column in a map)
+
+public final class Differential {
+
+    /** the fast paths of each kind of input, as arguments before the file */
+    private static final String[] CHAR_PATHS = {"", "-j4", "-stream", "-stream -j4"};
+    private static final String[] SPRITE_PATHS = {"", "-j4", "-stream", "-dedup", "-dedup -stream -j4"};
+    private static final String[] LDTK_PATHS = {"", "-j4", "-shared", "-shared -j4"};
+
+    private int checks;
+    private int failures;
+
+    private Differential() {
+    }
+
+    /**
+     * usage: Differential [tiny|small|medium|large|huge ...] [-seed N] [-keep] [file.png|file.ldtk ...]
+     * checks the generated inputs of the given sizes (tiny, small and medium by default) and the given files
+     */
+    public static void main(String[] args) throws Throwable {
+        List<String> sizes = new ArrayList<>();
+        List<File> files = new ArrayList<>();
+        long seed = 1;
+        boolean keep = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-keep")) {
+                keep = true;
+            } else if (args[i].equals("-seed") && i + 1 < args.length) {
+                seed = Long.parseLong(args[++i]);
+            } else if (args[i].endsWith(".png") || args[i].endsWith(".ldtk")) {
+                files.add(new File(args[i]));
+            } else {
+                sizes.add(args[i]);
+            }
+        }
+        if (sizes.isEmpty() && files.isEmpty()) {
+            sizes.addAll(List.of("tiny", "small", "medium"));
+        }
+        Differential differential = new Differential();
+        for (File file : files) {
+            differential.check(file);
+        }
+        for (String size : sizes) {
+            File dir = Inputs.directory();
+            try {
+                System.out.printf("%s inputs in %s%n", size, dir);
+                for (File file : Generate.cases(dir, size, seed)) {
+                    differential.check(file);
+                }
+            } finally {
+                if (!keep) {
+                    Inputs.delete(dir);
+                }
+            }
+        }
+        System.out.printf("%d checks, %d failed%n", differential.checks, differential.failures);
+        System.exit(differential.failures > 0 ? 1 : 0);
+    }
+
+    /** converts 'file' with each fast path and compares the outputs with the reference */
+    private void check(File file) throws Throwable {
+        boolean ldtk = file.getName().endsWith(".ldtk");
+        // both references first, so the image isn't loaded twice while converting
+        Map<String, byte[]> plain;
+        Map<String, byte[]> variant; // with -dedup or -shared
+        String[] paths;
+        if (ldtk) {
+            plain = referenceLdtk(file, false);
+            variant = referenceLdtk(file, true);
+            paths = LDTK_PATHS;
+        } else {
+            Object graphics = Targets.load(file.getPath(), "");
+            if (options(graphics).chOffset() >= 0) {
+                plain = referenceChars(graphics).outputs(options(graphics).chOffset(), options(graphics).defaultCol() >= 0);
+                variant = plain;
+                paths = CHAR_PATHS;
+            } else {
+                plain = referenceSprites(graphics, false);
+                variant = referenceSprites(graphics, true);
+                paths = SPRITE_PATHS;
+            }
+        }
+        for (String path : paths) {
+            boolean variantPath = path.contains("-dedup") || path.contains("-shared");
+            compare(file, path, variantPath ? variant : plain, convert(file, path, ldtk));
+        }
+    }
+
+    /** returns the outputs of converting 'file' with the fast path of 'arguments', by their names */
+    private static ConsoleBytes.Outputs convert(File file, String arguments, boolean ldtk) throws Throwable {
+        List<String> args = new ArrayList<>();
+        for (String argument : arguments.split(" ")) {
+            if (!argument.isEmpty()) {
+                args.add(argument);
+            }
+        }
+        args.add(file.getPath());
+        MethodHandle run = ldtk ? Targets.LDTK2ASM_RUN : Targets.SPRITE2ASM_RUN;
+        ConsoleBytes console = new ConsoleBytes();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        try (PrintStream out = new PrintStream(console, false, StandardCharsets.UTF_8);
+             PrintStream err = new PrintStream(errors, true, StandardCharsets.UTF_8)) {
+            run.invoke(args.toArray(new String[0]), out, err);
+        }
+        console.outputs.errors = errors.toString(StandardCharsets.UTF_8);
+        return console.outputs;
+    }
+
+    private void compare(File file, String path, Map<String, byte[]> expected, ConsoleBytes.Outputs actual) {
+        checks++;
+        String name = String.format("%s %s", file.getName(), path.isEmpty() ? "(default)" : path);
+        Set<String> outputs = new LinkedHashSet<>(expected.keySet());
+        outputs.addAll(actual.keySet());
+        long bytes = 0;
+        for (String output : outputs) {
+            byte[] e = expected.get(output);
+            byte[] a = actual.get(output);
+            String difference = null;
+            if (e == null) {
+                difference = "unexpected output";
+            } else if (a == null) {
+                difference = "missing output";
+            } else {
+                int i = Arrays.mismatch(e, a);
+                if (i >= 0 && i < Math.min(e.length, a.length)) {
+                    difference = String.format("byte %d is $%02x instead of $%02x", i, a[i] & 0xff, e[i] & 0xff);
+                } else if (i >= 0) {
+                    difference = String.format("%d bytes instead of %d", a.length, e.length);
+                }
+                bytes += e.length;
+            }
+            if (difference != null) {
+                failures++;
+                System.out.printf("FAIL %s: %s: %s%n", name, output, difference);
+                System.out.print(actual.errors);
+                return;
+            }
+        }
+        System.out.printf("ok   %s: %d outputs, %d bytes%n", name, outputs.size(), bytes);
+    }
+
+    private static Sprite2asm.Options options(Object graphics) throws Throwable {
+        return (Sprite2asm.Options) Targets.GET_OPTIONS.invoke(graphics);
+    }
+
+    /** The charset, charmap and colormap of an image, in the order Sprite2asm.buildCharmap() finds them */
+    private static final class Chars {
+        final int width8;
+        final int height8;
+        final int[] charmap;
+        final byte[] colormap;
+        byte[] charset = new byte[256 * 8];
+        int count;
+
+        Chars(int width8, int height8) {
+            this.width8 = width8;
+            this.height8 = height8;
+            charmap = new int[width8 * height8];
+            colormap = new byte[width8 * height8];
+        }
+
+        /** the outputs of a char screen converted with 'chOffset', with a colormap if 'colors' */
+        Map<String, byte[]> outputs(int chOffset, boolean colors) {
+            Map<String, byte[]> outputs = new LinkedHashMap<>();
+            outputs.put("charset", Arrays.copyOf(charset, count * 8));
+            byte[] charmapBytes = new byte[charmap.length];
+            for (int i = 0; i < charmap.length; i++) {
+                charmapBytes[i] = (byte) (charmap[i] + chOffset);
+            }
+            outputs.put("charmap", charmapBytes);
+            if (colors) {
+                outputs.put("colormap", colormap);
+            }
+            return outputs;
+        }
+    }
+
+    /** classifies, extracts and looks up each char on its own, then moves the empty char to the front */
+    private static Chars referenceChars(Object graphics) throws Throwable {
+        Object encoder = Targets.GET_ENCODER.invoke(graphics);
+        int pixelWidth = options(graphics).pixelWidth();
+        int defaultCol = options(graphics).defaultCol();
+        Chars chars = new Chars((int) Targets.GET_WIDTH.invoke(graphics) / 8, (int) Targets.GET_HEIGHT.invoke(graphics) / 8);
+        byte[] ch = new byte[8];
+        for (int cy = 0; cy < chars.height8; cy++) {
+            for (int cx = 0; cx < chars.width8; cx++) {
+                int detectedPixelWidth = pixelWidth;
+                if (pixelWidth > 1 && (boolean) Targets.IS_HIRES_CHAR.invoke(encoder, cx * 8, cy * 8)) {
+                    detectedPixelWidth = 1;
+                }
+                Targets.EXTRACT_OBJECT.invoke(encoder, cx * 8, cy * 8, 8, 8, ch, detectedPixelWidth);
+                int c3 = (int) Targets.GET_C3.invoke(encoder);
+                int color = c3 < 0 ? defaultCol : c3;
+                if (pixelWidth > 1) {
+                    color = (color & 0x07) | (detectedPixelWidth > 1 ? 0x08 : 0);
+                }
+                int i = cy * chars.width8 + cx;
+                chars.colormap[i] = (byte) color;
+                int nr = (int) Targets.FIND_IN_SET.invoke(ch, chars.charset, chars.count);
+                if (nr == chars.count) {
+                    if ((nr + 1) * 8 > chars.charset.length) {
+                        chars.charset = Arrays.copyOf(chars.charset, chars.charset.length * 2);
+                    }
+                    System.arraycopy(ch, 0, chars.charset, nr * 8, 8);
+                    chars.count++;
+                }
+                chars.charmap[i] = nr;
+            }
+        }
+        int empty = (int) Targets.FIND_IN_SET.invoke(new byte[8], chars.charset, chars.count);
+        if (empty > 0 && empty < chars.count) {
+            System.arraycopy(chars.charset, 0, chars.charset, empty * 8, 8);
+            Arrays.fill(chars.charset, 0, 8, (byte) 0);
+            for (int i = 0; i < chars.charmap.length; i++) {
+                chars.charmap[i] = chars.charmap[i] == 0 ? empty : chars.charmap[i] == empty ? 0 : chars.charmap[i];
+            }
+        }
+        return chars;
+    }
+
+    /** extracts each sprite on its own, skipping empty ones and with 'dedup' the ones found before */
+    private static Map<String, byte[]> referenceSprites(Object graphics, boolean dedup) throws Throwable {
+        Object encoder = Targets.GET_ENCODER.invoke(graphics);
+        int pixelWidth = options(graphics).pixelWidth();
+        int syOffset = options(graphics).syOffset();
+        int rows = Math.max(0, ((int) Targets.GET_HEIGHT.invoke(graphics) - syOffset) / 21);
+        int columns = (int) Targets.GET_WIDTH.invoke(graphics) / 24;
+        ByteArrayOutputStream sprites = new ByteArrayOutputStream();
+        byte[] uniques = new byte[64 * 64];
+        int count = 0;
+        byte[] spriteIndex = new byte[rows * columns];
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                byte[] sprite = new byte[64];
+                Targets.EXTRACT_OBJECT.invoke(encoder, column * 24, syOffset + row * 21, 24, 21, sprite, pixelWidth);
+                int cell = row * columns + column;
+                if ((int) Targets.FIND_IN_SET.invoke(sprite, new byte[64], 1) == 0) { // empty
+                    spriteIndex[cell] = (byte) 0xff;
+                    continue;
+                }
+                if (dedup) {
+                    int nr = (int) Targets.FIND_IN_SET.invoke(sprite, uniques, count);
+                    spriteIndex[cell] = (byte) nr;
+                    if (nr < count) {
+                        continue;
+                    }
+                    if ((count + 1) * 64 > uniques.length) {
+                        uniques = Arrays.copyOf(uniques, uniques.length * 2);
+                    }
+                    System.arraycopy(sprite, 0, uniques, count * 64, 64);
+                    count++;
+                }
+                sprites.write(sprite);
+            }
+        }
+        Map<String, byte[]> outputs = new LinkedHashMap<>();
+        if (sprites.size() > 0) {
+            outputs.put("sprites", sprites.toByteArray());
+        }
+        if (dedup) {
+            outputs.put("spriteindex", spriteIndex);
+        }
+        return outputs;
+    }
+
+    /** Unique tiles of a tileset in order of first use, with the chars they use in that order, like Ldtk2asm without -chXX */
+    private static final class Tiles {
+        final Chars chars;
+        final int tileWidth;
+        final int tileSize; // chars followed by their colors
+        int[] tiles;
+        int count;
+
+        Tiles(Chars chars, int tileWidth) {
+            this.chars = chars;
+            this.tileWidth = tileWidth;
+            tileSize = tileWidth * tileWidth * 2;
+            tiles = new int[tileSize * 64];
+        }
+
+        /** returns the number of the tile at char position 'ctx','cty' in the tileset, adding it if new */
+        int add(int ctx, int cty) throws Throwable {
+            int[] tile = new int[tileSize];
+            int i = 0;
+            for (int y = cty; y < cty + tileWidth; y++) {
+                for (int x = ctx; x < ctx + tileWidth; x++) {
+                    tile[i + tileSize / 2] = chars.colormap[y * chars.width8 + x];
+                    tile[i++] = chars.charmap[y * chars.width8 + x];
+                }
+            }
+            return add(tile);
+        }
+
+        /** returns the number of a tile of empty chars, with the color of the first empty char in the tileset, adding it if new */
+        int addEmpty() throws Throwable {
+            if ((int) Targets.FIND_IN_SET.invoke(new byte[8], chars.charset, chars.count) != 0) {
+                throw new IllegalStateException("unset cells and no empty char in the tileset");
+            }
+            int first = 0;
+            while (chars.charmap[first] != 0) { // the empty char is at the front
+                first++;
+            }
+            int[] tile = new int[tileSize];
+            Arrays.fill(tile, tileSize / 2, tileSize, chars.colormap[first]);
+            return add(tile);
+        }
+
+        private int add(int[] tile) throws Throwable {
+            int nr = (int) Targets.FIND_TILE.invoke(tile, tiles, count);
+            if (nr == count) {
+                if ((count + 1) * tileSize > tiles.length) {
+                    tiles = Arrays.copyOf(tiles, tiles.length * 2);
+                }
+                System.arraycopy(tile, 0, tiles, count * tileSize, tileSize);
+                count++;
+            }
+            return nr;
+        }
+
+        /** adds the tiles, colortiles and charset outputs, starting with 'prefix' */
+        void output(String prefix, Map<String, byte[]> outputs) {
+            int[] optimizedMap = new int[chars.count];
+            Arrays.fill(optimizedMap, -1);
+            ByteArrayOutputStream charset = new ByteArrayOutputStream();
+            int used = 0;
+            for (int i = 0; i < count; i++) {
+                for (int c = 0; c < tileSize / 2; c++) {
+                    int ch = tiles[i * tileSize + c];
+                    if (optimizedMap[ch] < 0) {
+                        optimizedMap[ch] = used++;
+                        charset.write(chars.charset, ch * 8, 8);
+                    }
+                }
+            }
+            byte[] soa = new byte[count * tileSize / 2];
+            byte[] colors = new byte[count * tileSize / 2];
+            for (int c = 0; c < tileSize / 2; c++) {
+                for (int i = 0; i < count; i++) {
+                    soa[c * count + i] = (byte) optimizedMap[tiles[i * tileSize + c]];
+                    colors[c * count + i] = (byte) tiles[i * tileSize + tileSize / 2 + c];
+                }
+            }
+            outputs.put(prefix + "tiles", soa);
+            outputs.put(prefix + "colortiles", colors);
+            outputs.put(prefix + "charset", charset.toByteArray());
+        }
+    }
+
+    /** converts the Tiles layers of 'project' cell by cell, with one set of tiles per tileset if 'shared' */
+    private static Map<String, byte[]> referenceLdtk(File project, boolean shared) throws Throwable {
+        Map<String, byte[]> outputs = new LinkedHashMap<>();
+        Map<String, Chars> tilesets = new HashMap<>();
+        Map<String, Tiles> sharedTiles = new LinkedHashMap<>();
+        Map<String, Integer> entityTypes = new HashMap<>();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(project))) {
+            Object reader = Targets.NEW_LDTK_READER.invoke(in);
+            Object layer;
+            while ((layer = Targets.NEXT_LAYER.invoke(reader)) != null) {
+                if ("Entities".equals(Targets.field(layer, "type"))) {
+                    referenceEntities(layer, entityTypes, outputs);
+                }
+                if (!"Tiles".equals(Targets.field(layer, "type"))) {
+                    continue;
+                }
+                File tileset = new File(project.getParentFile(), (String) Targets.field(layer, "tilesetRelPath"));
+                Chars chars = tilesets.get(tileset.getName());
+                if (chars == null) {
+                    chars = referenceChars(Targets.load(tileset.getPath(), "-ch00"));
+                    tilesets.put(tileset.getName(), chars);
+                }
+                int tileWidth = (int) Targets.field(layer, "gridSize") / 8;
+                Tiles tiles = shared ? sharedTiles.get(tileset.getName()) : null;
+                if (tiles == null) {
+                    tiles = new Tiles(chars, tileWidth);
+                    if (shared) {
+                        sharedTiles.put(tileset.getName(), tiles);
+                    }
+                }
+                int width = (int) Targets.field(layer, "cWid");
+                int gridSize = (int) Targets.field(layer, "gridSize");
+                int[] srcX = (int[]) Targets.field(layer, "srcX");
+                int[] srcY = (int[]) Targets.field(layer, "srcY");
+                int[] pxX = (int[]) Targets.field(layer, "pxX");
+                int[] pxY = (int[]) Targets.field(layer, "pxY");
+                int[] coordId = (int[]) Targets.field(layer, "coordId");
+                int count = (int) Targets.field(layer, "gridTileCount");
+                int[] top = new int[width * (int) Targets.field(layer, "cHei")]; // last tile in each cell
+                Arrays.fill(top, -1); // unset
+                for (int i = 0; i < count; i++) {
+                    top[coordId[i] >= 0 ? coordId[i] : pxY[i] / gridSize * width + pxX[i] / gridSize] = i;
+                }
+                int[] cells = new int[top.length];
+                Arrays.fill(cells, -1);
+                for (int i = 0; i < count; i++) { // covered tiles are left out of the tileset
+                    int cell = coordId[i] >= 0 ? coordId[i] : pxY[i] / gridSize * width + pxX[i] / gridSize;
+                    if (top[cell] == i) {
+                        cells[cell] = tiles.add(srcX[i] / 8, srcY[i] / 8);
+                    }
+                }
+                byte[] tilemap = new byte[cells.length];
+                for (int i = 0; i < cells.length; i++) {
+                    tilemap[i] = (byte) (cells[i] >= 0 ? cells[i] : tiles.addEmpty());
+                }
+                String prefix = Targets.field(layer, "level") + "_" + Targets.field(layer, "identifier") + "_";
+                outputs.put(prefix + "tilemap", tilemap);
+                if (!shared) {
+                    tiles.output(prefix, outputs);
+                }
+            }
+        }
+        for (Map.Entry<String, Tiles> tiles : sharedTiles.entrySet()) {
+            tiles.getValue().output(tiles.getKey() + "_", outputs);
+        }
+        return outputs;
+    }
+
+    /** groups the entities of 'layer' by column, numbering their types in order of first appearance in 'types' */
+    private static void referenceEntities(Object layer, Map<String, Integer> types, Map<String, byte[]> outputs) throws Throwable {
+        int gridSize = (int) Targets.field(layer, "gridSize");
+        int count = (int) Targets.field(layer, "entityCount");
+        int[] entityX = (int[]) Targets.field(layer, "entityX");
+        int[] entityWidth = (int[]) Targets.field(layer, "entityWidth");
+        String[] identifiers = (String[]) Targets.field(layer, "entityIdentifier");
+        String[] values = (String[]) Targets.field(layer, "entityValue");
+        Map<Integer, List<Integer>> columns = new TreeMap<>();
+        int width = (int) Targets.field(layer, "cWid");
+        for (int e = 0; e < count; e++) {
+            types.putIfAbsent(identifiers[e], types.size());
+            columns.computeIfAbsent(entityX[e] / gridSize, x -> new ArrayList<>()).add(e);
+            width = Math.max(width, entityX[e] / gridSize + 1);
+        }
+        byte[] entities = new byte[4 * count];
+        byte[] entityIndex = new byte[width + 1];
+        int i = 0;
+        for (int x = 0; x <= width; x++) {
+            entityIndex[x] = (byte) i;
+            for (int e : columns.getOrDefault(x, List.of())) {
+                entities[i] = (byte) x;
+                entities[count + i] = (byte) (entityWidth[e] / gridSize);
+                entities[2 * count + i] = (byte) (int) types.get(identifiers[e]);
+                entities[3 * count + i] = (byte) (values[e] != null ? Integer.parseInt(values[e]) : 0);
+                i++;
+            }
+        }
+        String prefix = Targets.field(layer, "level") + "_" + Targets.field(layer, "identifier") + "_";
+        outputs.put(prefix + "entities", entities);
+        outputs.put(prefix + "entityindex", entityIndex);
+    }
+
+    /** Collects the byte rows a converter prints on the console per output, named like the reference outputs */
+    private static final class ConsoleBytes extends OutputStream {
+        private static final Pattern LEVEL = Pattern.compile("; level: '(.*)', layer '(.*?)'.*");
+        private static final Pattern TILESET = Pattern.compile("; tileset '(.*)' shared by .*");
+        private static final Pattern SECTION = Pattern.compile("; (\\w+) \\d+ bytes.*");
+        private static final Pattern SPRITE = Pattern.compile("; \\d+ \\(\\d+,\\d+\\)");
+
+        /** the outputs with the errors printed while converting */
+        static final class Outputs extends LinkedHashMap<String, byte[]> {
+            String errors = "";
+        }
+
+        final Outputs outputs = new Outputs();
+        private final Map<String, ByteArrayOutputStream> sections = new LinkedHashMap<>();
+        private final StringBuilder line = new StringBuilder();
+        private String prefix = "";
+        private ByteArrayOutputStream section; // null outside byte rows
+
+        @Override
+        public void write(int b) {
+            if (b == '\n') {
+                parse(line.toString());
+                line.setLength(0);
+            } else if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (line.length() > 0) {
+                parse(line.toString());
+            }
+            for (Map.Entry<String, ByteArrayOutputStream> entry : sections.entrySet()) {
+                outputs.put(entry.getKey(), entry.getValue().toByteArray());
+            }
+        }
+
+        private void parse(String text) {
+            if (text.startsWith("!byte $")) {
+                if (section != null) {
+                    for (String value : text.substring(6).split(",")) {
+                        section.write(Integer.parseInt(value.substring(1), 16));
+                    }
+                }
+                return;
+            }
+            Matcher matcher;
+            if ((matcher = LEVEL.matcher(text)).matches()) {
+                prefix = matcher.group(1) + "_" + matcher.group(2) + "_";
+                section = null;
+            } else if ((matcher = TILESET.matcher(text)).matches()) {
+                prefix = matcher.group(1) + "_";
+                section = null;
+            } else if ((matcher = SECTION.matcher(text)).matches()) {
+                section = sections.computeIfAbsent(prefix + matcher.group(1), name -> new ByteArrayOutputStream());
+            } else if (SPRITE.matcher(text).matches()) {
+                section = sections.computeIfAbsent(prefix + "sprites", name -> new ByteArrayOutputStream());
+            } else if (text.startsWith("; Sprite2asm ") || text.startsWith("; Ldtk2asm ")) {
+                section = null;
+            }
+        }
+    }
+}
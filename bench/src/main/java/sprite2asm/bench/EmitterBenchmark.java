@@ -0,0 +1,42 @@
+package sprite2asm.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Formatting bytes as assembler source rows and writing them to a console that discards them
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmitterBenchmark {
+
+    @Param({"1000", "64000"})
+    public int length;
+
+    @Param({"8", "40"})
+    public int wrap;
+
+    private byte[] data;
+    private Object emitter;
+
+    @Setup
+    public void setup() throws Throwable {
+        data = new byte[length];
+        new Random(4).nextBytes(data);
+        emitter = Targets.NEW_EMITTER.invoke(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @Benchmark
+    public Object printByteRows() throws Throwable {
+        Targets.PRINT_BYTE_ROWS.invoke(emitter, data, length, wrap);
+        Targets.CLOSE.invoke(emitter);
+        return emitter;
+    }
+}
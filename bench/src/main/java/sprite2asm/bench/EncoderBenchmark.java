@@ -0,0 +1,95 @@
+package sprite2asm.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+// Encoding of all chars of a char screen, hires and multicolor. isHiresCharThenExtract is the per char work of the
+// multicolor path before the fused encodeChar, which only runs for multicolor screens.
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncoderBenchmark {
+
+    @Param({"small", "medium", "large"})
+    public String size;
+
+    @Param({"1", "2"})
+    public int pixelWidth;
+
+    private File dir;
+    private Object encoder;
+    private int width8;
+    private int height8;
+    private final byte[] buf = new byte[8];
+
+    @Setup
+    public void setup() throws Throwable {
+        dir = Inputs.directory();
+        int[] screen = Inputs.screenSize(size);
+        width8 = screen[0] / 8;
+        height8 = screen[1] / 8;
+        String options = pixelWidth > 1 ? "-ch00-mc12-bg0" : "-ch00-bg0";
+        File file = Inputs.charScreen(dir, "screen" + options + ".png", screen[0], screen[1], Inputs.charCount(size), 1);
+        encoder = Targets.GET_ENCODER.invoke(Targets.load(file.getPath(), ""));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Inputs.delete(dir);
+    }
+
+    @Benchmark
+    public void extractObject(Blackhole bh) throws Throwable {
+        for (int cy = 0; cy < height8; cy++) {
+            for (int cx = 0; cx < width8; cx++) {
+                Targets.EXTRACT_OBJECT.invoke(encoder, cx * 8, cy * 8, 8, 8, buf, pixelWidth);
+                bh.consume(buf);
+            }
+        }
+    }
+
+    @Benchmark
+    public int isHiresChar() throws Throwable {
+        int hires = 0;
+        for (int cy = 0; cy < height8; cy++) {
+            for (int cx = 0; cx < width8; cx++) {
+                if ((boolean) Targets.IS_HIRES_CHAR.invoke(encoder, cx * 8, cy * 8)) {
+                    hires++;
+                }
+            }
+        }
+        return hires;
+    }
+
+    @Benchmark
+    public void isHiresCharThenExtract(Blackhole bh) throws Throwable {
+        for (int cy = 0; cy < height8; cy++) {
+            for (int cx = 0; cx < width8; cx++) {
+                boolean hires = (boolean) Targets.IS_HIRES_CHAR.invoke(encoder, cx * 8, cy * 8);
+                Targets.EXTRACT_OBJECT.invoke(encoder, cx * 8, cy * 8, 8, 8, buf, hires ? 1 : pixelWidth);
+                bh.consume(buf);
+            }
+        }
+    }
+
+    @Benchmark
+    public int encodeChar(Blackhole bh) throws Throwable {
+        int hires = 0;
+        for (int cy = 0; cy < height8; cy++) {
+            for (int cx = 0; cx < width8; cx++) {
+                if ((int) Targets.ENCODE_CHAR.invoke(encoder, cx * 8, cy * 8, buf) == 1) {
+                    hires++;
+                }
+                bh.consume(buf);
+            }
+        }
+        return hires;
+    }
+}
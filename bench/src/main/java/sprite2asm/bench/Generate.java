@@ -0,0 +1,160 @@
+package sprite2asm.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Generates sprite sheets, char screens and LDtk projects of any size and uniqueness, for benchmarks and Differential
+
+public final class Generate {
+
+    private Generate() {
+    }
+
+    /**
+     * usage:
+     *   Generate dir chars hires|mc|mixed WxH uniques [seed]    char screen of W x H pixels
+     *   Generate dir sprites hires|mc CxR uniques [seed]        sprite sheet of C x R sprites
+     *   Generate dir ldtk levels WxH uniques [seed [percent]]   project with levels of W x H 16x16 tiles in percent of the cells, and its tileset
+     *   Generate dir tiny|small|medium|large|huge [seed]        all of the above, as checked by Differential
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: Generate dir chars hires|mc|mixed WxH uniques [seed]");
+            System.err.println("       Generate dir sprites hires|mc CxR uniques [seed]");
+            System.err.println("       Generate dir ldtk levels WxH uniques [seed [percent]]");
+            System.err.println("       Generate dir tiny|small|medium|large|huge [seed]");
+            System.exit(1);
+        }
+        File dir = new File(args[0]);
+        dir.mkdirs();
+        List<File> files = new ArrayList<>();
+        switch (args[1]) {
+            case "chars":
+            case "sprites":
+            case "ldtk":
+                if (args.length < 5) {
+                    throw new IllegalArgumentException("missing arguments for " + args[1]);
+                }
+                int[] size = size(args[3]);
+                int uniques = Integer.parseInt(args[4]);
+                long seed = args.length > 5 ? Long.parseLong(args[5]) : 1;
+                if (args[1].equals("chars")) {
+                    files.add(chars(dir, args[2], size[0], size[1], uniques, seed));
+                } else if (args[1].equals("sprites")) {
+                    files.add(sprites(dir, args[2], size[0], size[1], uniques, seed));
+                } else {
+                    int percent = args.length > 6 ? Integer.parseInt(args[6]) : 100;
+                    files.add(ldtk(dir, Integer.parseInt(args[2]), size[0], size[1], uniques, percent, seed));
+                }
+                break;
+            default:
+                files.addAll(cases(dir, args[1], args.length > 2 ? Long.parseLong(args[2]) : 1));
+        }
+        for (File file : files) {
+            System.out.println(file.getPath());
+        }
+    }
+
+    /** generates the inputs of 'size' in 'dir' and returns them, from 'tiny' (a few chars) to 'huge' (over 250 megapixels) */
+    static List<File> cases(File dir, String size, long seed) throws IOException {
+        List<File> files = new ArrayList<>();
+        switch (size) {
+            case "tiny":
+                files.add(chars(dir, "hires", 64, 48, 16, seed));
+                files.add(chars(dir, "mc", 64, 48, 16, seed));
+                files.add(chars(dir, "mixed", 64, 48, 16, seed));
+                files.add(sprites(dir, "hires", 4, 3, 6, seed));
+                files.add(sprites(dir, "mc", 4, 3, 6, seed));
+                files.add(ldtk(dir, 1, 8, 6, 16, 100, seed));
+                files.add(ldtk(dir, 1, 8, 6, 16, 50, seed));
+                break;
+            case "small": // one screen
+                files.add(chars(dir, "hires", 320, 200, 64, seed));
+                files.add(chars(dir, "mc", 320, 200, 64, seed));
+                files.add(chars(dir, "mixed", 320, 200, 64, seed));
+                files.add(sprites(dir, "hires", 8, 8, 16, seed));
+                files.add(sprites(dir, "mc", 8, 8, 16, seed));
+                files.add(ldtk(dir, 2, 40, 25, 64, 100, seed));
+                files.add(ldtk(dir, 2, 40, 25, 64, 20, seed));
+                break;
+            case "medium": // scrolling level
+                files.add(chars(dir, "hires", 1280, 400, 256, seed));
+                files.add(chars(dir, "mc", 1280, 400, 256, seed));
+                files.add(chars(dir, "mixed", 1280, 400, 256, seed));
+                files.add(sprites(dir, "hires", 32, 16, 64, seed));
+                files.add(sprites(dir, "mc", 32, 16, 64, seed));
+                files.add(ldtk(dir, 8, 64, 32, 256, 100, seed));
+                files.add(ldtk(dir, 8, 64, 32, 256, 20, seed));
+                break;
+            case "large": // large map or tile sheet
+                files.add(chars(dir, "hires", 2048, 2048, 2048, seed));
+                files.add(chars(dir, "mc", 2048, 2048, 2048, seed));
+                files.add(chars(dir, "mixed", 2048, 2048, 2048, seed));
+                files.add(sprites(dir, "hires", 64, 64, 255, seed));
+                files.add(sprites(dir, "mc", 64, 64, 255, seed));
+                files.add(ldtk(dir, 32, 128, 64, 256, 100, seed));
+                files.add(ldtk(dir, 32, 128, 64, 256, 5, seed));
+                break;
+            case "huge": // 268 megapixels, converting these needs a few GB of heap
+                files.add(chars(dir, "mc", 16384, 16384, 256, seed));
+                files.add(sprites(dir, "mc", 680, 780, 255, seed));
+                files.add(ldtk(dir, 64, 256, 128, 256, 100, seed));
+                files.add(ldtk(dir, 8, 1024, 1024, 256, 1, seed));
+                break;
+            default:
+                throw new IllegalArgumentException("unknown size " + size);
+        }
+        return files;
+    }
+
+    /** writes a char screen of 'width' x 'height' pixels with 'uniques' chars of 'kind' (hires, mc or mixed) */
+    static File chars(File dir, String kind, int width, int height, int uniques, long seed) throws IOException {
+        String options;
+        Inputs.CharKind charKind;
+        switch (kind) {
+            case "hires": charKind = Inputs.CharKind.HIRES; options = "-ch00-bg0-cm1"; break;
+            case "mc": charKind = Inputs.CharKind.MULTICOLOR; options = "-ch00-mc12-bg0-cm5"; break;
+            case "mixed": charKind = Inputs.CharKind.MIXED; options = "-ch00-mc12-bg0-cm5"; break;
+            default: throw new IllegalArgumentException("unknown char kind " + kind);
+        }
+        String name = String.format("chars_%s_%dx%d%s.png", kind, width, height, options);
+        return Inputs.charScreen(dir, name, width, height, uniques, charKind, seed);
+    }
+
+    /** writes a sprite sheet of 'columns' x 'rows' sprites picked from 'uniques' sprites of 'kind' (hires or mc) */
+    static File sprites(File dir, String kind, int columns, int rows, int uniques, long seed) throws IOException {
+        String options;
+        Inputs.SpriteKind spriteKind;
+        switch (kind) {
+            case "hires": spriteKind = Inputs.SpriteKind.HIRES; options = "-bg0"; break;
+            case "mc": spriteKind = Inputs.SpriteKind.MULTICOLOR; options = "-mc12-bg0"; break;
+            default: throw new IllegalArgumentException("unknown sprite kind " + kind);
+        }
+        String name = String.format("sprites_%s_%dx%d%s.png", kind, columns, rows, options);
+        return Inputs.spriteSheet(dir, name, columns, rows, uniques, spriteKind, seed);
+    }
+
+    /**
+     * writes an LDtk project of 'levels' levels of 'width' x 'height' 16x16 tiles picked from 'uniques' tiles, with its tileset,
+     * with tiles in about 'percent' of the cells
+     */
+    static File ldtk(File dir, int levels, int width, int height, int uniques, int percent, long seed) throws IOException {
+        int rows = (uniques + 15) / 16; // 16 tiles per row
+        File tileset = Inputs.charScreen(dir, String.format("tiles_%d-mc12-bg0.png", uniques), 256, rows * 16, uniques * 4,
+                Inputs.CharKind.MULTICOLOR, seed);
+        String name = String.format("world_%dx%dx%d%s.ldtk", levels, width, height, percent < 100 ? "_" + percent + "pct" : "");
+        return Inputs.ldtkProject(dir, name, tileset, levels, width, height, 16, uniques, percent, seed);
+    }
+
+    /** parses "WxH" */
+    private static int[] size(String size) {
+        String[] parts = size.toLowerCase(Locale.ROOT).split("x");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("size should be WxH: " + size);
+        }
+        return new int[] {Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+    }
+}
@@ -0,0 +1,225 @@
+package sprite2asm.bench;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// Generated inputs for the benchmarks, always the same for the same arguments
+
+final class Inputs {
+
+    private Inputs() {
+    }
+
+    /** returns a new temporary directory for inputs */
+    static File directory() throws IOException {
+        return Files.createTempDirectory("sprite2asm-bench").toFile();
+    }
+
+    /** deletes 'dir' with everything in it */
+    static void delete(File dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /** width and height in pixels of a char screen of 'size' */
+    static int[] screenSize(String size) {
+        switch (size) {
+            case "small": return new int[] {320, 200};    // one screen
+            case "medium": return new int[] {1280, 400};  // scrolling level
+            case "large": return new int[] {2048, 2048};  // large map or tile sheet
+            default: throw new IllegalArgumentException("unknown size " + size);
+        }
+    }
+
+    /** number of unique chars in a char screen of 'size' */
+    static int charCount(String size) {
+        switch (size) {
+            case "small": return 64;
+            case "medium": return 256;
+            default: return 2048;
+        }
+    }
+
+    /** kind of chars in a generated char screen */
+    enum CharKind { HIRES, MULTICOLOR, MIXED }
+
+    /** kind of sprites in a generated sprite sheet */
+    enum SpriteKind { HIRES, MULTICOLOR }
+
+    /** the 16 colors of generated images as 0xRRGGBB, color 0 is transparent */
+    private static int[] palette() {
+        int[] palette = new int[16];
+        for (int i = 0; i < 16; i++) {
+            palette[i] = (i * 17 & 0xff) << 16 | (i * 33 & 0xff) << 8 | (i * 71 & 0xff);
+        }
+        return palette;
+    }
+
+    /** writes a char screen built from 'chars' random hires and multicolor chars */
+    static File charScreen(File dir, String name, int width, int height, int chars, long seed) throws IOException {
+        return charScreen(dir, name, width, height, chars, CharKind.MIXED, seed);
+    }
+
+    /**
+     * writes a char screen built from 'chars' random chars of 'kind', a band of 8 rows at a time so it can be of any size;
+     * multicolor chars use colors 1 and 2 as mc1 and mc2 and one of colors 3-7 as char color, mixed chars use any colors
+     */
+    static File charScreen(File dir, String name, int width, int height, int chars, CharKind kind, long seed) throws IOException {
+        Random random = new Random(seed);
+        int[][] pool = new int[chars][64];
+        for (int[] ch : pool) {
+            int type = random.nextInt(4); // empty, hires or (twice as likely) multicolor
+            int c1 = 1 + random.nextInt(15), c2 = 1 + random.nextInt(15), c3 = 1 + random.nextInt(15);
+            if (kind == CharKind.HIRES && type > 1) {
+                type = 1;
+            } else if (kind == CharKind.MULTICOLOR) {
+                type = type == 0 ? 0 : 2;
+                c1 = 1;
+                c2 = 2;
+                c3 = 3 + c3 % 5;
+            }
+            for (int i = 0; i < 64; i += 2) {
+                switch (type) {
+                    case 0: break; // empty
+                    case 1: // hires, single width pixels
+                        ch[i] = random.nextBoolean() ? c1 : 0;
+                        ch[i + 1] = random.nextBoolean() ? c1 : 0;
+                        break;
+                    default: // multicolor, double width pixels
+                        int bits = random.nextInt(4);
+                        ch[i] = ch[i + 1] = bits == 0 ? 0 : bits == 1 ? c1 : bits == 2 ? c2 : c3;
+                }
+            }
+        }
+        File file = new File(dir, name);
+        byte[][] band = new byte[8][width];
+        try (PngWriter png = new PngWriter(file, width, height, palette())) {
+            for (int cy = 0; cy < height; cy += 8) {
+                if (cy + 8 <= height) {
+                    for (int cx = 0; cx + 8 <= width; cx += 8) {
+                        int[] ch = pool[random.nextInt(chars)];
+                        for (int i = 0; i < 64; i++) {
+                            band[i >> 3][cx + (i & 7)] = (byte) ch[i];
+                        }
+                    }
+                } else {
+                    for (byte[] row : band) {
+                        Arrays.fill(row, (byte) 0);
+                    }
+                }
+                for (int y = cy; y < Math.min(cy + 8, height); y++) {
+                    png.writeRow(band[y - cy]);
+                }
+            }
+        }
+        return file;
+    }
+
+    /**
+     * writes a sprite sheet of 'columns' x 'rows' sprites picked from 'sprites' random sprites of 'kind', one in eight empty;
+     * multicolor sprites use colors 1 and 2 as mc1 and mc2 and one of colors 3-15 as sprite color
+     */
+    static File spriteSheet(File dir, String name, int columns, int rows, int sprites, SpriteKind kind, long seed) throws IOException {
+        Random random = new Random(seed);
+        int[][] pool = new int[sprites][24 * 21];
+        for (int[] sprite : pool) {
+            if (random.nextInt(8) == 0) {
+                continue; // empty
+            }
+            int color = 3 + random.nextInt(13);
+            for (int i = 0; i < sprite.length; i += 2) {
+                if (kind == SpriteKind.HIRES) {
+                    sprite[i] = random.nextBoolean() ? color : 0;
+                    sprite[i + 1] = random.nextBoolean() ? color : 0;
+                } else {
+                    int bits = random.nextInt(4);
+                    sprite[i] = sprite[i + 1] = bits == 0 ? 0 : bits == 1 ? 1 : bits == 2 ? 2 : color;
+                }
+            }
+        }
+        int width = columns * 24;
+        File file = new File(dir, name);
+        byte[][] band = new byte[21][width];
+        try (PngWriter png = new PngWriter(file, width, rows * 21, palette())) {
+            for (int row = 0; row < rows; row++) {
+                for (int column = 0; column < columns; column++) {
+                    int[] sprite = pool[random.nextInt(sprites)];
+                    for (int i = 0; i < sprite.length; i++) {
+                        band[i / 24][column * 24 + i % 24] = (byte) sprite[i];
+                    }
+                }
+                for (byte[] line : band) {
+                    png.writeRow(line);
+                }
+            }
+        }
+        return file;
+    }
+
+    /** writes an LDtk project with 'levels' levels of 'width' x 'height' tiles of 'gridSize' pixels from 'tileset' */
+    static File ldtkProject(File dir, String name, File tileset, int levels, int width, int height, int gridSize, long seed) throws IOException {
+        return ldtkProject(dir, name, tileset, levels, width, height, gridSize, 256, seed);
+    }
+
+    /** writes an LDtk project like above with its tiles picked from the first 'uniques' tiles of 'tileset' */
+    static File ldtkProject(File dir, String name, File tileset, int levels, int width, int height, int gridSize, int uniques, long seed) throws IOException {
+        return ldtkProject(dir, name, tileset, levels, width, height, gridSize, uniques, 100, seed);
+    }
+
+    /**
+     * writes an LDtk project like above with tiles in about 'percent' of the cells, the others left unset; below 100 percent
+     * some cells get a second tile under their top one, as when drawing over a cell in LDtk
+     */
+    static File ldtkProject(File dir, String name, File tileset, int levels, int width, int height, int gridSize, int uniques, int percent, long seed) throws IOException {
+        Random random = new Random(seed);
+        BufferedImage tiles = ImageIO.read(tileset);
+        int columns = tiles.getWidth() / gridSize;
+        int tileCount = columns * (tiles.getHeight() / gridSize);
+        File file = new File(dir, name);
+        try (Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            out.write("{\"__header__\":{\"fileType\":\"LDtk Project JSON\",\"app\":\"LDtk\"},\"levels\":[\n");
+            for (int l = 0; l < levels; l++) {
+                out.write(String.format("%s{\"identifier\":\"Level_%d\",\"layerInstances\":[", l > 0 ? "," : "", l));
+                out.write(String.format("{\"__identifier\":\"Entities\",\"__type\":\"Entities\",\"__cWid\":%d,\"__cHei\":%d,\"__gridSize\":%d,\"__tilesetRelPath\":null,\"gridTiles\":[],\"entityInstances\":[",
+                        width, height, gridSize));
+                for (int e = 0; e < width / 4; e++) {
+                    out.write(String.format("%s{\"__identifier\":\"%s\",\"px\":[%d,%d],\"width\":%d,\"fieldInstances\":[{\"__identifier\":\"value\",\"__value\":%d}]}",
+                            e > 0 ? "," : "", random.nextBoolean() ? "Enemy" : "Coin", random.nextInt(width) * gridSize, gridSize, gridSize, random.nextInt(100)));
+                }
+                out.write("]},");
+                out.write(String.format("{\"__identifier\":\"Background\",\"__type\":\"Tiles\",\"__cWid\":%d,\"__cHei\":%d,\"__gridSize\":%d,\"__tilesetRelPath\":\"%s\",\"entityInstances\":[],\"gridTiles\":[\n",
+                        width, height, gridSize, tileset.getName()));
+                String separator = "";
+                for (int i = 0; i < width * height; i++) {
+                    if (percent < 100 && random.nextInt(100) >= percent) {
+                        continue;
+                    }
+                    if (percent < 100 && random.nextInt(8) == 0) {
+                        int covered = random.nextInt(tileCount);
+                        out.write(String.format("%s{\"px\":[%d,%d],\"src\":[%d,%d],\"f\":0,\"t\":%d,\"d\":[%d]}",
+                                separator, (i % width) * gridSize, (i / width) * gridSize, (covered % columns) * gridSize, (covered / columns) * gridSize, covered, i));
+                        separator = ",";
+                    }
+                    int t = random.nextInt(Math.min(tileCount, uniques));
+                    out.write(String.format("%s{\"px\":[%d,%d],\"src\":[%d,%d],\"f\":0,\"t\":%d,\"d\":[%d]}",
+                            separator, (i % width) * gridSize, (i / width) * gridSize, (t % columns) * gridSize, (t / columns) * gridSize, t, i));
+                    separator = ",";
+                }
+                out.write("]}]}\n");
+            }
+            out.write("]}\n");
+        }
+        return file;
+    }
+}
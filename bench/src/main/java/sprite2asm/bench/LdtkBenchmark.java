@@ -0,0 +1,55 @@
+package sprite2asm.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+// End-to-end conversion of an LDtk project, from reading the file to writing the assembler source
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LdtkBenchmark {
+
+    @Param({"small", "medium", "large"})
+    public String size;
+
+    @Param({"", "-shared"})
+    public String options;
+
+    private File dir;
+    private String[] args;
+    private PrintStream console;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Inputs.directory();
+        File tileset = Inputs.charScreen(dir, "tiles.png", 256, 256, 512, 5);
+        File project;
+        switch (size) {
+            case "small": project = Inputs.ldtkProject(dir, "world.ldtk", tileset, 1, 20, 12, 16, 6); break;
+            case "medium": project = Inputs.ldtkProject(dir, "world.ldtk", tileset, 8, 64, 12, 16, 6); break;
+            default: project = Inputs.ldtkProject(dir, "world.ldtk", tileset, 32, 256, 64, 16, 6);
+        }
+        args = options.isEmpty() ? new String[] {project.getPath()} : new String[] {options, project.getPath()};
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // converters print to System.out
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        System.setOut(console);
+        Inputs.delete(dir);
+    }
+
+    @Benchmark
+    public void run() throws Throwable {
+        Targets.LDTK2ASM_MAIN.invoke(args);
+    }
+}
@@ -0,0 +1,114 @@
+package sprite2asm.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+// Writes a 16 color indexed PNG a row at a time, so generated images can be far larger than the heap
+
+final class PngWriter implements Closeable {
+
+    private static final int IDAT_SIZE = 1 << 16;
+
+    private final int width;
+    private final DataOutputStream file;
+    private final DeflaterOutputStream idat;
+    private final byte[] row; // filter byte followed by 2 pixels per byte
+
+    /** starts 'file' with 'width' x 'height' pixels of 'palette' (16 colors as 0xRRGGBB), color 0 transparent */
+    PngWriter(File file, int width, int height, int[] palette) throws IOException {
+        this.width = width;
+        this.file = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), IDAT_SIZE));
+        this.file.write(new byte[] {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'});
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(header);
+        data.writeInt(width);
+        data.writeInt(height);
+        data.write(new byte[] {4, 3, 0, 0, 0}); // 4 bits per pixel, indexed, deflate, no filters, not interlaced
+        chunk("IHDR", header.toByteArray(), header.size());
+        byte[] plte = new byte[16 * 3];
+        for (int i = 0; i < 16; i++) {
+            plte[i * 3] = (byte) (palette[i] >> 16);
+            plte[i * 3 + 1] = (byte) (palette[i] >> 8);
+            plte[i * 3 + 2] = (byte) palette[i];
+        }
+        chunk("PLTE", plte, plte.length);
+        chunk("tRNS", new byte[] {0}, 1);
+        idat = new DeflaterOutputStream(new Chunks(), new Deflater(Deflater.BEST_SPEED), IDAT_SIZE);
+        row = new byte[1 + (width + 1) / 2];
+    }
+
+    /** writes the next row, 'pixels' holds a palette index per pixel */
+    void writeRow(byte[] pixels) throws IOException {
+        for (int x = 0; x < width; x += 2) {
+            int right = x + 1 < width ? pixels[x + 1] & 0xf : 0;
+            row[1 + x / 2] = (byte) ((pixels[x] & 0xf) << 4 | right);
+        }
+        idat.write(row);
+    }
+
+    @Override
+    public void close() throws IOException {
+        idat.close();
+        chunk("IEND", new byte[0], 0);
+        file.close();
+    }
+
+    private void chunk(String type, byte[] data, int length) throws IOException {
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data, 0, length);
+        file.writeInt(length);
+        file.write(name);
+        file.write(data, 0, length);
+        file.writeInt((int) crc.getValue());
+    }
+
+    /** Cuts the compressed rows into IDAT chunks */
+    private final class Chunks extends OutputStream {
+        private final byte[] buffer = new byte[IDAT_SIZE];
+        private int count;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if (count == buffer.length) {
+                    flush();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) {
+                chunk("IDAT", buffer, count);
+                count = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package sprite2asm.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Lookup of the last and of a missing char or tile in sets of several sizes, and building a whole set of them.
+// The linear findInSet and findTile are the baseline for the hashed CharIndex, SpriteSet and TileSet, which add a
+// missing entry, so only their hits and builds are measured.
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+
+    @Param({"16", "64", "256"})
+    public int count;
+
+    private byte[] chars;
+    private byte[][] charList;
+    private byte[] lastChar;
+    private byte[] missingChar;
+    private Object charIndex;
+    private byte[][] spriteList;
+    private byte[] lastSprite;
+    private Object spriteSet;
+    private int[] tiles;
+    private int[][] tileList;
+    private int[] lastTile;
+    private int[] missingTile;
+    private Object tileSet;
+
+    @Setup
+    public void setup() throws Throwable {
+        Random random = new Random(3);
+        int charSize = 8; // one char, as in the charset
+        chars = new byte[count * charSize];
+        random.nextBytes(chars);
+        charList = new byte[count][charSize];
+        charIndex = Targets.NEW_CHAR_INDEX.invoke(256);
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(chars, i * charSize, charList[i], 0, charSize);
+            Targets.PUT_IF_ABSENT.invoke(charIndex, (long) Targets.PACK.invoke(charList[i]), i);
+        }
+        lastChar = charList[count - 1];
+        missingChar = lastChar.clone();
+        missingChar[charSize - 1]++; // differs in the last byte only
+
+        int spriteSize = 64; // sprite and its padding byte, as kept by -dedup
+        spriteList = new byte[count][spriteSize];
+        spriteSet = Targets.NEW_SPRITE_SET.invoke();
+        for (int i = 0; i < count; i++) {
+            random.nextBytes(spriteList[i]);
+            Targets.SPRITE_SET_FIND_OR_ADD.invoke(spriteSet, spriteList[i]);
+        }
+        lastSprite = spriteList[count - 1];
+
+        int tileSize = 2 * 2 * 2; // 2x2 chars and their colors
+        tiles = new int[count * tileSize];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = random.nextInt(16); // few chars and colors, so many tiles share a prefix
+        }
+        tileList = new int[count][tileSize];
+        tileSet = Targets.NEW_TILE_SET.invoke(tileSize);
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(tiles, i * tileSize, tileList[i], 0, tileSize);
+            Targets.TILE_SET_FIND_OR_ADD.invoke(tileSet, tileList[i]);
+        }
+        lastTile = tileList[count - 1];
+        missingTile = lastTile.clone();
+        missingTile[tileSize - 1] = 16;
+    }
+
+    @Benchmark
+    public int findInSetLast() throws Throwable {
+        return (int) Targets.FIND_IN_SET.invoke(lastChar, chars, count);
+    }
+
+    @Benchmark
+    public int findInSetMissing() throws Throwable {
+        return (int) Targets.FIND_IN_SET.invoke(missingChar, chars, count);
+    }
+
+    @Benchmark
+    public int findInSetBuild() throws Throwable {
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            found += (int) Targets.FIND_IN_SET.invoke(charList[i], chars, i);
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int charIndexLast() throws Throwable {
+        return (int) Targets.PUT_IF_ABSENT.invoke(charIndex, (long) Targets.PACK.invoke(lastChar), count);
+    }
+
+    @Benchmark
+    public int charIndexBuild() throws Throwable {
+        Object index = Targets.NEW_CHAR_INDEX.invoke(256);
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            found += (int) Targets.PUT_IF_ABSENT.invoke(index, (long) Targets.PACK.invoke(charList[i]), i);
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int spriteSetLast() throws Throwable {
+        return (int) Targets.SPRITE_SET_FIND_OR_ADD.invoke(spriteSet, lastSprite);
+    }
+
+    @Benchmark
+    public int spriteSetBuild() throws Throwable {
+        Object set = Targets.NEW_SPRITE_SET.invoke();
+        int found = 0;
+        for (byte[] sprite : spriteList) {
+            found += (int) Targets.SPRITE_SET_FIND_OR_ADD.invoke(set, sprite);
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int findTileLast() throws Throwable {
+        return (int) Targets.FIND_TILE.invoke(lastTile, tiles, count);
+    }
+
+    @Benchmark
+    public int findTileMissing() throws Throwable {
+        return (int) Targets.FIND_TILE.invoke(missingTile, tiles, count);
+    }
+
+    @Benchmark
+    public int findTileBuild() throws Throwable {
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            found += (int) Targets.FIND_TILE.invoke(tileList[i], tiles, i);
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int tileSetLast() throws Throwable {
+        return (int) Targets.TILE_SET_FIND_OR_ADD.invoke(tileSet, lastTile);
+    }
+
+    @Benchmark
+    public int tileSetBuild() throws Throwable {
+        Object set = Targets.NEW_TILE_SET.invoke(lastTile.length);
+        int found = 0;
+        for (int[] tile : tileList) {
+            found += (int) Targets.TILE_SET_FIND_OR_ADD.invoke(set, tile);
+        }
+        return found;
+    }
+}
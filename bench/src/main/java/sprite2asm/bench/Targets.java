@@ -0,0 +1,116 @@
+package sprite2asm.bench;
+
+import sprite2asm.Ldtk2asm;
+import sprite2asm.Sprite2asm;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+// The internals of the converters are private to package sprite2asm, so they are reached through method handles
+
+final class Targets {
+
+    static final Class<?> SPRITE2ASM = Sprite2asm.class;
+    static final Class<?> ENCODER = type("sprite2asm.Sprite2asm$Encoder");
+    static final Class<?> EMITTER = type("sprite2asm.Sprite2asm$Emitter");
+    static final Class<?> LDTK2ASM = Ldtk2asm.class;
+    static final Class<?> OPTIONS = Sprite2asm.Options.class;
+    static final Class<?> LDTK_READER = type("sprite2asm.LdtkReader");
+    static final Class<?> LAYER = type("sprite2asm.LdtkReader$Layer");
+    static final Class<?> CHAR_INDEX = type("sprite2asm.Sprite2asm$CharIndex");
+    static final Class<?> SPRITE_SET = type("sprite2asm.Sprite2asm$SpriteSet");
+    static final Class<?> TILE_SET = type("sprite2asm.Ldtk2asm$TileSet");
+
+    static final MethodHandle NEW_SPRITE2ASM = constructor(SPRITE2ASM);
+    static final MethodHandle LOAD = method(SPRITE2ASM, "load", String.class, String.class);
+    static final MethodHandle BUILD_CHARMAP = method(SPRITE2ASM, "buildCharmap");
+    static final MethodHandle FIND_IN_SET = method(SPRITE2ASM, "findInSet", byte[].class, byte[].class, int.class);
+    static final MethodHandle GET_ENCODER = getter(SPRITE2ASM, "encoder");
+    static final MethodHandle GET_OPTIONS = getter(SPRITE2ASM, "options");
+    static final MethodHandle GET_WIDTH = getter(SPRITE2ASM, "width");
+    static final MethodHandle GET_HEIGHT = getter(SPRITE2ASM, "height");
+    static final MethodHandle SPRITE2ASM_RUN = method(SPRITE2ASM, "run", String[].class, PrintStream.class, PrintStream.class);
+
+    static final MethodHandle EXTRACT_OBJECT = method(ENCODER, "extractObject", int.class, int.class, int.class, int.class, byte[].class, int.class);
+    static final MethodHandle IS_HIRES_CHAR = method(ENCODER, "isHiresChar", int.class, int.class);
+    static final MethodHandle ENCODE_CHAR = method(ENCODER, "encodeChar", int.class, int.class, byte[].class);
+    static final MethodHandle GET_C3 = getter(ENCODER, "c3");
+
+    static final MethodHandle NEW_CHAR_INDEX = constructor(CHAR_INDEX, int.class);
+    static final MethodHandle PACK = method(CHAR_INDEX, "pack", byte[].class);
+    static final MethodHandle PUT_IF_ABSENT = method(CHAR_INDEX, "putIfAbsent", long.class, int.class);
+
+    static final MethodHandle NEW_SPRITE_SET = constructor(SPRITE_SET);
+    static final MethodHandle SPRITE_SET_FIND_OR_ADD = method(SPRITE_SET, "findOrAdd", byte[].class);
+
+    static final MethodHandle NEW_EMITTER = constructor(EMITTER, PrintStream.class);
+    static final MethodHandle PRINT_BYTE_ROWS = method(EMITTER, "printByteRows", byte[].class, int.class, int.class);
+    static final MethodHandle CLOSE = method(EMITTER, "close");
+
+    static final MethodHandle FIND_TILE = method(LDTK2ASM, "findTile", int[].class, int[].class, int.class);
+    static final MethodHandle NEW_TILE_SET = constructor(TILE_SET, int.class);
+    static final MethodHandle TILE_SET_FIND_OR_ADD = method(TILE_SET, "findOrAdd", int[].class);
+    static final MethodHandle LDTK2ASM_MAIN = method(LDTK2ASM, "main", String[].class);
+    static final MethodHandle LDTK2ASM_RUN = method(LDTK2ASM, "run", String[].class, PrintStream.class, PrintStream.class);
+
+    static final MethodHandle NEW_LDTK_READER = constructor(LDTK_READER, InputStream.class);
+    static final MethodHandle NEXT_LAYER = method(LDTK_READER, "nextLayer");
+
+    private Targets() {
+    }
+
+    /** returns a Sprite2asm that has loaded 'filename' with 'arguments' */
+    static Object load(String filename, String arguments) throws Throwable {
+        Object graphics = NEW_SPRITE2ASM.invoke();
+        LOAD.invoke(graphics, filename, arguments);
+        return graphics;
+    }
+
+    /** returns field 'name' of 'target', e.g. the options of a Sprite2asm or the cells of an LdtkReader.Layer */
+    static Object field(Object target, String name) throws Throwable {
+        return getter(target.getClass(), name).invoke(target);
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("converter class not on the class path: " + name, e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> type, Class<?>... parameterTypes) {
+        try {
+            Constructor<?> constructor = type.getDeclaredConstructor(parameterTypes);
+            constructor.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(constructor);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("no constructor in " + type.getName(), e);
+        }
+    }
+
+    private static MethodHandle method(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            Method method = type.getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("no method " + name + " in " + type.getName(), e);
+        }
+    }
+
+    private static MethodHandle getter(Class<?> type, String name) {
+        try {
+            Field field = type.getDeclaredField(name);
+            field.setAccessible(true);
+            return MethodHandles.lookup().unreflectGetter(field);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("no field " + name + " in " + type.getName(), e);
+        }
+    }
+}
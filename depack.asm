@@ -0,0 +1,99 @@
+; Depackers for the packed binary files of Sprite2asm and Ldtk2asm (-rle, -lz and -pack), ACME syntax
+;
+; Usage: point depack_src to the packed data and depack_dst to where it goes, then jsr rle_depack for .rle files
+; or jsr lz_depack for .lz files. Afterwards depack_src points after the packed data and depack_dst after the output.
+;
+; RLE: control byte $00-$7f copies the next n+1 bytes, $80-$fe repeats the next byte n-$7e times, $ff ends.
+; LZ:  control byte $01-$7f copies the next n bytes, $80-$ff copies (n&$7f)+3 bytes from 'offset' bytes back
+;      in the output with the 16-bit offset following (low byte first), $00 ends.
+
+depack_src = $fb        ; 2 bytes zero page
+depack_dst = $fd        ; 2 bytes zero page
+depack_ref = $22        ; 2 bytes zero page, only used by lz_depack
+
+!zone rle_depack
+rle_depack
+        ldy #0
+.control
+        jsr depack_getbyte
+        cmp #$ff
+        beq .done
+        cmp #$80
+        bcs .run
+        tax                     ; literals: copy X+1 bytes
+        inx
+.literal
+        jsr depack_getbyte
+        jsr depack_putbyte
+        dex
+        bne .literal
+        beq .control            ; always
+.run
+        sbc #$7e                ; carry is set: A = count 2..128
+        tax
+        jsr depack_getbyte
+.repeat
+        jsr depack_putbyte
+        dex
+        bne .repeat
+        beq .control            ; always
+.done
+        rts
+
+!zone lz_depack
+lz_depack
+        ldy #0
+.control
+        jsr depack_getbyte
+        tax                     ; flags of the control byte
+        beq .done
+        bmi .match
+.literal                        ; literals: copy X bytes
+        jsr depack_getbyte
+        jsr depack_putbyte
+        dex
+        bne .literal
+        beq .control            ; always
+.match
+        and #$7f
+        clc
+        adc #3
+        tax                     ; X = length 3..130
+        jsr depack_getbyte      ; offset
+        sta depack_ref
+        jsr depack_getbyte
+        sta depack_ref+1
+        sec                     ; depack_ref = depack_dst - offset
+        lda depack_dst
+        sbc depack_ref
+        sta depack_ref
+        lda depack_dst+1
+        sbc depack_ref+1
+        sta depack_ref+1
+.copy                           ; byte by byte, so overlapping matches repeat their start
+        lda (depack_ref),y
+        inc depack_ref
+        bne +
+        inc depack_ref+1
++       jsr depack_putbyte
+        dex
+        bne .copy
+        beq .control            ; always
+.done
+        rts
+
+!zone depack_getbyte
+depack_getbyte                  ; A = next packed byte, Y must be 0, keeps X
+        lda (depack_src),y
+        inc depack_src
+        bne +
+        inc depack_src+1
++       rts
+
+!zone depack_putbyte
+depack_putbyte                  ; stores A in the output, Y must be 0, keeps A and X
+        sta (depack_dst),y
+        inc depack_dst
+        bne +
+        inc depack_dst+1
++       rts
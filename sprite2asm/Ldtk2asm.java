@@ -0,0 +1,863 @@
+package sprite2asm;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Convert LDtk maps to asm
+
+public class Ldtk2asm {
+
+    private static final Pattern CHPATTERN = Pattern.compile("-ch([0-9a-fA-F][0-9a-fA-F])([0-9a-fA-F][0-9a-fA-F])?"); // -chXX[YY] offset charset [and put empty char at YY]
+    private static final Pattern CACHEPATTERN = Pattern.compile("-cache"); // -cache reuse outputs of earlier conversions
+    private static final Pattern SHAREDPATTERN = Pattern.compile("-shared"); // -shared one set of tiles and charset per tileset
+    private static final Pattern STATSPATTERN = Pattern.compile("-stats"); // -stats report timings and counts on stderr
+    private static final Pattern JPATTERN = Pattern.compile("-j([0-9]+)"); // -jN convert layers with N threads (0 for all cores)
+    private static final Pattern FILLPATTERN = Pattern.compile("-fill([0-9a-fA-F][0-9a-fA-F])"); // -fillXX tile number of cells without a tile
+
+    private int chOffset = 0;  // offset to start char indexing in tiles (default 0)
+    private int chEmpty = -1;  // index to put empty char (default -1 don't care)
+    private int fill = -1;     // tile number of cells without a tile (default -1 a tile of empty chars)
+    private boolean cache = false; // reuse outputs of earlier conversions of unchanged files
+    private boolean shared = false; // combine the tiles of all levels that use the same tileset
+    private boolean stats = false; // report timings and counts of each file on stderr
+    private int threads = 1; // decode tilesets and convert layers with this many threads
+
+    private PrintStream out = System.out; // console output
+    private PrintStream err = System.err; // warnings and errors
+
+    private final Sprite2asm.Stats fileStats = new Sprite2asm.Stats(); // of the file being converted
+
+    // decoded tilesets with their charmap, by canonical path, reused by all layers and files of this run
+    private final Map<String, LoadedTileset> loadedTilesets = new ConcurrentHashMap<>();
+
+    // number of each entity identifier in the document being converted, in order of first appearance
+    private final Map<String, Integer> entityTypes = new ConcurrentHashMap<>();
+
+    // outputs per layer with -watch, so only changed layers are converted again (null if not watching)
+    private Map<String, LayerOutput> layerOutputs;
+
+    // tileset images for convert(), null when reading them from files
+    private Tilesets tilesetImages;
+
+    /** Gives the tileset images used by an LDtk document for convert() */
+    public interface Tilesets {
+        /** returns the image of the tileset at 'relPath', as given in the document */
+        BufferedImage load(String relPath) throws IOException;
+    }
+
+    /** returns a converter that starts char indexing in tiles at 'chOffset', putting the empty char at 'chEmpty' if >= 0, like -chXXYY */
+    public Ldtk2asm withChOffset(int chOffset, int chEmpty) {
+        Ldtk2asm copy = copy();
+        copy.chOffset = chOffset;
+        copy.chEmpty = chEmpty;
+        return copy;
+    }
+
+    /** returns a converter that puts tile number 'fill' in cells without a tile, or a tile of empty chars if -1, like -fillXX */
+    public Ldtk2asm withFill(int fill) {
+        Ldtk2asm copy = copy();
+        copy.fill = fill;
+        return copy;
+    }
+
+    /** returns a converter that combines the tiles of all levels per tileset if 'shared', like -shared */
+    public Ldtk2asm withShared(boolean shared) {
+        Ldtk2asm copy = copy();
+        copy.shared = shared;
+        return copy;
+    }
+
+    private Ldtk2asm copy() {
+        Ldtk2asm copy = new Ldtk2asm();
+        copy.chOffset = chOffset;
+        copy.chEmpty = chEmpty;
+        copy.fill = fill;
+        copy.shared = shared;
+        return copy;
+    }
+
+    /**
+     * Converts LDtk 'document' in-process, without printing anything or writing files. The outputs are named like
+     * their files would be, e.g. "Level_0_Background_tilemap", "Level_0_Background_tiles", "Level_0_Background_colortiles"
+     * and "Level_0_Background_charset", or "tiles_2_charset" for tileset 'tiles.png' with 2x2 tiles with -shared,
+     * and "Level_0_Entities_entities" and "Level_0_Entities_entityindex" for Entities layers.
+     * Every call has its own state, so calls can run concurrently.
+     */
+    public Sprite2asm.Result convert(InputStream document, Tilesets tilesets) throws IOException {
+        Ldtk2asm instance = copy();
+        instance.tilesetImages = tilesets;
+        Sprite2asm graphics = new Sprite2asm();
+        graphics.capture();
+        try (LdtkReader reader = new LdtkReader(document)) {
+            instance.convertLayers(null, reader, graphics, new ArrayList<>());
+        }
+        return graphics.result();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("-client")) {
+            String[] rest = Arrays.copyOfRange(args, 1, args.length);
+            if (!Sprite2asm.Server.request("Ldtk2asm", rest)) {
+                run(rest, System.out, System.err);
+            }
+        } else {
+            run(args, System.out, System.err);
+        }
+    }
+
+    /** runs the command line 'args', printing the console output to 'out' and warnings to 'err' */
+    static void run(String[] args, PrintStream out, PrintStream err) throws Exception {
+        StringBuilder arguments = new StringBuilder();
+        Ldtk2asm instance = new Ldtk2asm();
+        instance.out = out;
+        instance.err = err;
+        boolean watch = false;
+        List<String> filenames = new ArrayList<>();
+        List<String> fileArguments = new ArrayList<>();
+        for (String arg : args) {
+            if (Sprite2asm.WATCHPATTERN.matcher(arg).matches()) {
+                watch = true;
+            } else if (arg.startsWith("-")) {
+                arguments.append(arg);
+            } else {
+                filenames.add(arg);
+                fileArguments.add(arguments.toString());
+            }
+        }
+        if (!watch) {
+            for (int i = 0; i < filenames.size(); i++) {
+                instance.run(filenames.get(i), fileArguments.get(i));
+            }
+            return;
+        }
+        instance.layerOutputs = new HashMap<>();
+        try (Sprite2asm.Watcher watcher = new Sprite2asm.Watcher()) {
+            List<List<File>> tilesets = new ArrayList<>();
+            for (int i = 0; i < filenames.size(); i++) {
+                watcher.watch(new File(filenames.get(i)));
+                tilesets.add(instance.runWatched(filenames.get(i), fileArguments.get(i), watcher));
+            }
+            err.format("watching %d files%n", filenames.size());
+            while (true) {
+                Set<Path> changed = watcher.awaitChanges();
+                for (int i = 0; i < filenames.size(); i++) {
+                    boolean dirty = changed.contains(Sprite2asm.Watcher.path(new File(filenames.get(i))));
+                    for (File tileset : tilesets.get(i)) {
+                        dirty |= changed.contains(Sprite2asm.Watcher.path(tileset));
+                    }
+                    if (dirty) {
+                        tilesets.set(i, instance.runWatched(filenames.get(i), fileArguments.get(i), watcher));
+                    }
+                }
+            }
+        }
+    }
+
+    /** runs and watches the tilesets used, returns the tilesets */
+    private List<File> runWatched(String filename, String arguments, Sprite2asm.Watcher watcher) throws IOException {
+        try {
+            List<File> tilesets = run(filename, arguments);
+            for (File tileset : tilesets) {
+                watcher.watch(tileset);
+            }
+            return tilesets;
+        } catch (IOException | RuntimeException e) {
+            // keep watching, the file may be saved again
+            err.format("ERROR: converting %s: %s%n", filename, e);
+            return Collections.emptyList();
+        }
+    }
+
+    /** Output of a single layer, together with the fingerprint of its input */
+    private static final class LayerOutput {
+        final String fingerprint;
+        final List<Sprite2asm.Emitter.Output> outputs;
+
+        LayerOutput(String fingerprint, List<Sprite2asm.Emitter.Output> outputs) {
+            this.fingerprint = fingerprint;
+            this.outputs = outputs;
+        }
+    }
+
+    /** Decoded tileset, together with the modification time of its file */
+    private static final class LoadedTileset {
+        final long lastModified;
+        final Sprite2asm graphics;
+
+        LoadedTileset(long lastModified, Sprite2asm graphics) {
+            this.lastModified = lastModified;
+            this.graphics = graphics;
+        }
+    }
+
+    // extract formatting instructions from string
+    private void updateSettings(String str) {
+        Matcher ch = CHPATTERN.matcher(str);
+        if (ch.find()) { // -chXX[YY] offset charset [and put empty char at YY]
+            chOffset = Integer.parseInt(ch.group(1),16);
+            chEmpty = ch.group(2) != null ? Integer.parseInt(ch.group(2),16) : -1;
+        }
+        Matcher f = FILLPATTERN.matcher(str);
+        fill = f.find() ? Integer.parseInt(f.group(1), 16) : -1;
+        cache = CACHEPATTERN.matcher(str).find();
+        shared = SHAREDPATTERN.matcher(str).find();
+        stats = STATSPATTERN.matcher(str).find();
+        Matcher j = JPATTERN.matcher(str);
+        threads = j.find() ? Integer.parseInt(j.group(1)) : 1;
+        if (threads == 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+    }
+
+    /** returns the tileset at 'tilesetPath' with its charmap, decoding it only if not done before or changed since */
+    private Sprite2asm loadTileset(String tilesetPath) throws IOException {
+        if (tilesetImages != null) {
+            LoadedTileset loaded = loadedTilesets.get(tilesetPath);
+            if (loaded == null) {
+                Sprite2asm tileset = new Sprite2asm();
+                tileset.load(tilesetImages.load(tilesetPath), tilesetPath, "-ch00");
+                tileset.buildCharmap();
+                loaded = new LoadedTileset(0, tileset);
+                loadedTilesets.put(tilesetPath, loaded);
+            }
+            return loaded.graphics;
+        }
+        long lastModified = new File(tilesetPath).lastModified();
+        LoadedTileset loaded = loadedTilesets.get(tilesetPath);
+        if (loaded == null || loaded.lastModified != lastModified) {
+            Sprite2asm tileset = new Sprite2asm();
+            tileset.load(tilesetPath, "-ch00"); // -ch00 to force building charmap and start from 0
+            tileset.buildCharmap();
+            loaded = new LoadedTileset(lastModified, tileset);
+            loadedTilesets.put(tilesetPath, loaded);
+        }
+        return loaded.graphics;
+    }
+
+    /** converts 'filename' and returns the tilesets it uses */
+    private List<File> run(String filename, String arguments) throws IOException {
+        fileStats.start();
+        updateSettings(arguments);
+        entityTypes.clear();
+        Sprite2asm graphics = new Sprite2asm();
+        graphics.console(out, err);
+        graphics.setHeader("Ldtk2asm", arguments, filename);
+        graphics.outputOptions(arguments); // -bin, -asm and packing
+        String cacheKey = null;
+        List<File> tilesets = new ArrayList<>(); // files the output depends on besides 'filename'
+        if (cache && layerOutputs == null) { // when watching, unchanged layers are reused instead
+            cacheKey = Sprite2asm.Cache.key(String.format("ch%d/%d|fill%d|sh%b|%s", chOffset, chEmpty, fill, shared, graphics.settings()),
+                    new File(filename));
+            boolean restored = graphics.restoreFromCache(cacheKey);
+            fileStats.lap("cache");
+            if (restored) {
+                fileStats.count("cached", 1);
+                reportStats(graphics, filename);
+                return tilesets;
+            }
+        }
+
+        //noinspection IOStreamConstructor
+        try (LdtkReader reader = new LdtkReader(new FileInputStream(filename))) {
+            convertLayers(filename, reader, graphics, tilesets);
+        }
+        graphics.closeOutput();
+        fileStats.lap("emit");
+        if (cacheKey != null) {
+            graphics.storeInCache(cacheKey, tilesets);
+            fileStats.lap("cache");
+        }
+        reportStats(graphics, filename);
+        return tilesets;
+    }
+
+    /** converts all layers read by 'reader' into 'graphics', adding the tilesets used to 'tilesets' */
+    private void convertLayers(String filename, LdtkReader reader, Sprite2asm graphics, List<File> tilesets) throws IOException {
+        if (threads > 1) {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                convertLayers(filename, reader, graphics, tilesets, pool);
+            } finally {
+                pool.shutdownNow();
+            }
+            return;
+        }
+        Map<String, TilePool> sharedPools = new LinkedHashMap<>(); // tiles per tileset and tile size with -shared
+        LdtkReader.Layer layer;
+        while ((layer = reader.nextLayer()) != null) {
+            fileStats.lap("parse");
+            fileStats.count("layers", 1);
+            addEntityTypes(layer);
+            String tilesetPath = "Tiles".equals(layer.type) ? tilesetPath(filename, layer) : null;
+            if (tilesetPath != null) {
+                tilesets.add(new File(tilesetPath));
+            }
+
+            String layerKey = null;
+            String fingerprint = null;
+            int firstOutput = 0;
+            if (layerOutputs != null && !shared) { // shared tiles depend on all layers before
+                layerKey = filename + "|" + layer.level + "|" + layer.identifier;
+                fingerprint = fingerprint(layer, tilesetPath);
+                LayerOutput previous = layerOutputs.get(layerKey);
+                if (previous != null && previous.fingerprint.equals(fingerprint)) {
+                    graphics.replay(previous.outputs);
+                    fileStats.lap("emit");
+                    continue;
+                }
+                graphics.record();
+                firstOutput = graphics.recorded().size();
+            }
+
+            TilePool pool = null;
+            if (tilesetPath != null) {
+                int tileWidth = layer.gridSize / 8; // tile size in #chars (square)
+                Sprite2asm tileset = loadTileset(tilesetPath);
+                fileStats.lap("tileset");
+                pool = shared
+                        ? sharedPools.computeIfAbsent(tilesetPath + "|" + tileWidth, k -> new TilePool(tileset, tilesetPath, tileWidth))
+                        : new TilePool(tileset, tilesetPath, tileWidth);
+            }
+            convertLayer(layer, pool, graphics, fileStats);
+            fileStats.lap("emit");
+
+            if (layerKey != null) {
+                List<Sprite2asm.Emitter.Output> outputs = graphics.recorded();
+                layerOutputs.put(layerKey, new LayerOutput(fingerprint, new ArrayList<>(outputs.subList(firstOutput, outputs.size()))));
+            }
+        }
+        outputSharedTiles(graphics, sharedPools);
+    }
+
+    /**
+     * converts like above, with -jN: tilesets are decoded on 'pool' as soon as the first layer using them is read,
+     * and without -shared each layer is converted on 'pool' into a deferred part, which are written in document order
+     */
+    private void convertLayers(String filename, LdtkReader reader, Sprite2asm graphics, List<File> tilesets, ExecutorService pool) throws IOException {
+        Map<String, Future<Sprite2asm>> tilesetLoads = new HashMap<>(); // by path, each decoded once
+        Map<String, TilePool> sharedPools = new LinkedHashMap<>(); // tiles per tileset and tile size with -shared
+        Deque<LayerPart> parts = new ArrayDeque<>(); // layers being converted, in document order
+        LdtkReader.Layer layer;
+        while ((layer = reader.nextLayer()) != null) {
+            fileStats.lap("parse");
+            fileStats.count("layers", 1);
+            addEntityTypes(layer);
+            String tilesetPath = "Tiles".equals(layer.type) ? tilesetPath(filename, layer) : null;
+            Future<Sprite2asm> tileset = null;
+            if (tilesetPath != null) {
+                tilesets.add(new File(tilesetPath));
+                tileset = tilesetLoads.computeIfAbsent(tilesetPath, path -> pool.submit(() -> loadTileset(path)));
+            }
+            int tileWidth = layer.gridSize / 8; // tile size in #chars (square)
+
+            if (shared) { // shared tiles depend on all layers before, so only the tilesets are loaded ahead
+                TilePool tiles = null;
+                if (tileset != null) {
+                    Sprite2asm loaded = await(tileset);
+                    fileStats.lap("tileset");
+                    tiles = sharedPools.computeIfAbsent(tilesetPath + "|" + tileWidth, k -> new TilePool(loaded, tilesetPath, tileWidth));
+                }
+                convertLayer(layer, tiles, graphics, fileStats);
+                fileStats.lap("emit");
+                continue;
+            }
+
+            LayerPart part = new LayerPart();
+            if (layerOutputs != null) {
+                part.layerKey = filename + "|" + layer.level + "|" + layer.identifier;
+                part.fingerprint = fingerprint(layer, tilesetPath);
+                LayerOutput previous = layerOutputs.get(part.layerKey);
+                if (previous != null && previous.fingerprint.equals(part.fingerprint)) {
+                    part.outputs = previous.outputs;
+                }
+            }
+            if (part.outputs == null) {
+                LdtkReader.Layer current = layer;
+                Future<Sprite2asm> currentTileset = tileset;
+                part.graphics = graphics.deferred();
+                part.stats = pool.submit(() -> {
+                    Sprite2asm.Stats stats = new Sprite2asm.Stats();
+                    stats.start();
+                    TilePool tiles = null;
+                    if (currentTileset != null) {
+                        tiles = new TilePool(await(currentTileset), tilesetPath, tileWidth);
+                        stats.lap("tileset");
+                    }
+                    convertLayer(current, tiles, part.graphics, stats);
+                    stats.lap("emit");
+                    return stats;
+                });
+            }
+            parts.add(part);
+            // write the parts that are done, and limit the parts kept in memory
+            while (!parts.isEmpty() && (parts.peek().isDone() || parts.size() > 2 * threads)) {
+                writePart(parts.remove(), graphics);
+            }
+        }
+        while (!parts.isEmpty()) {
+            writePart(parts.remove(), graphics);
+        }
+        outputSharedTiles(graphics, sharedPools);
+    }
+
+    /** Layer converted on another thread with -jN, or the earlier outputs of an unchanged layer with -watch */
+    private static final class LayerPart {
+        Sprite2asm graphics; // deferred outputs, null if reused
+        Future<Sprite2asm.Stats> stats;
+        List<Sprite2asm.Emitter.Output> outputs; // when reused
+        String layerKey; // with -watch
+        String fingerprint;
+
+        boolean isDone() {
+            return stats == null || stats.isDone();
+        }
+    }
+
+    /** writes 'part' into 'graphics', waiting until it is converted */
+    private void writePart(LayerPart part, Sprite2asm graphics) throws IOException {
+        if (part.outputs == null) {
+            Sprite2asm.Stats stats = await(part.stats);
+            fileStats.lap("wait");
+            fileStats.add(stats);
+            part.outputs = part.graphics.recorded();
+        }
+        graphics.replay(part.outputs);
+        fileStats.lap("emit");
+        if (part.layerKey != null) {
+            layerOutputs.put(part.layerKey, new LayerOutput(part.fingerprint, part.outputs));
+        }
+    }
+
+    /** returns the result of 'future', with the exception of a failed task as is */
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while converting layers");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /** converts Tiles or Entities 'layer' into 'graphics', adding its tiles to 'pool' (for Tiles layers) */
+    private void convertLayer(LdtkReader.Layer layer, TilePool pool, Sprite2asm graphics, Sprite2asm.Stats stats) throws IOException {
+        String levelIdentifier = layer.level;
+        String layerIdentifier = layer.identifier;
+        if ("Tiles".equals(layer.type)) {
+            int width = layer.cWid;
+            int height = layer.cHei;
+            pool.layers++;
+            byte[] tileMap = new byte[width*height];
+            // gridTiles can be a "sparse" array if not all cells are set, so each tile is placed by its cell ("d") or else
+            // its pixel position, in document order so later tiles are on top. Only the top tile of each cell is extracted,
+            // so tiles covered by others don't end up in the tileset
+            BitSet placed = new BitSet(tileMap.length);
+            int[] cells = new int[layer.gridTileCount]; // cell of each tile, -1 if outside the layer
+            int[] top = new int[tileMap.length]; // last tile placed in each cell
+            int outside = 0;
+            for (int i = 0; i < layer.gridTileCount; i++) {
+                int cx = layer.pxX[i] / layer.gridSize;
+                int cell = layer.coordId[i] >= 0 ? layer.coordId[i] : cx < width ? (layer.pxY[i] / layer.gridSize) * width + cx : -1;
+                if (cell < 0 || cell >= tileMap.length) {
+                    cells[i] = -1;
+                    outside++;
+                    continue;
+                }
+                cells[i] = cell;
+                top[cell] = i;
+                placed.set(cell);
+            }
+            for (int i = 0; i < layer.gridTileCount; i++) {
+                int cell = cells[i];
+                if (cell >= 0 && top[cell] == i) {
+                    tileMap[cell] = (byte)pool.add(layer.srcX[i] / 8, layer.srcY[i] / 8); // top-left coordinate
+                }
+            }
+            int unset = tileMap.length - placed.cardinality();
+            if (unset > 0) {
+                int fillTile = fill >= 0 ? fill : pool.addEmpty();
+                if (fillTile < 0) {
+                    throw new IOException(String.format("%d cells of level '%s', layer '%s' are unset and tileset '%s' has no empty char, use -fillXX",
+                            unset, levelIdentifier, layerIdentifier, new File(pool.path).getName()));
+                }
+                for (int cell = placed.nextClearBit(0); cell < tileMap.length; cell = placed.nextClearBit(cell + 1)) {
+                    tileMap[cell] = (byte)fillTile;
+                }
+                stats.count("unset", unset);
+            }
+            if (outside > 0) {
+                graphics.warning(String.format("WARNING: %d tiles outside level '%s', layer '%s' are left out%n",
+                        outside, levelIdentifier, layerIdentifier));
+            }
+            stats.lap("tiles");
+            stats.count("cells", tileMap.length);
+            if (!shared && pool.tileSet.count > 256) {
+                graphics.warning(String.format("WARNING: tilemap overflows with %d tiles in level '%s', layer '%s'%n",
+                        pool.tileSet.count - 256, levelIdentifier, layerIdentifier));
+            }
+            String tag = levelIdentifier + "_" + layerIdentifier; // output files per layer
+            graphics.createOutput(tag + "_tilemap");
+            graphics.outputString(String.format("; level: '%s', layer '%s', tileset '%s'%n", levelIdentifier, layerIdentifier, new File(pool.path).getName()));
+            graphics.outputString(String.format("; tilemap %d bytes (%d x %d)%n", width * height, width, height));
+            graphics.appendByteRows(tileMap, width * height, width);
+            if (!shared) {
+                outputTiles(graphics, pool, tag, "", stats);
+            }
+
+        } else if ("Entities".equals(layer.type)) {
+            int gridSize = layer.gridSize; // grid size in #pixels (square)
+            int count = layer.entityCount;
+            // "column based" entities: sorted by xtile once, in document order within a column
+            long[] order = new long[count];
+            int columns = layer.cWid;
+            for (int e = 0; e < count; e++) {
+                int pxx = layer.entityX[e] / gridSize; // top-left coordinate
+                order[e] = (long) pxx << 32 | e;
+                columns = Math.max(columns, pxx + 1);
+            }
+            Arrays.sort(order);
+            byte[] entities = new byte[4 * count]; // SoA: xtile, width, type and value rows
+            byte[] entityIndex = new byte[columns + 1]; // first entity of each column, and the count
+            BitSet types = new BitSet();
+            int badValues = 0;
+            int column = 0;
+            for (int i = 0; i < count; i++) {
+                int e = (int) order[i];
+                int pxx = (int) (order[i] >> 32);
+                while (column <= pxx) {
+                    entityIndex[column++] = (byte) i;
+                }
+                int type = entityTypes.get(layer.entityIdentifier[e]);
+                int value = entityValue(layer.entityValue[e]); // first entity property
+                if (value < -128 || value > 255) {
+                    badValues++;
+                }
+                types.set(type);
+                entities[i] = (byte) pxx;
+                entities[count + i] = (byte) (layer.entityWidth[e] / gridSize);
+                entities[2 * count + i] = (byte) type;
+                entities[3 * count + i] = (byte) value;
+            }
+            while (column <= columns) {
+                entityIndex[column++] = (byte) count;
+            }
+            if (badValues > 0) {
+                graphics.warning(String.format("WARNING: %d entity values in level '%s', layer '%s' are no numbers or don't fit in a byte%n",
+                        badValues, levelIdentifier, layerIdentifier));
+            }
+            if (count > 255 || columns > 256 || types.length() > 256) {
+                graphics.warning(String.format("WARNING: entities overflow with %d entities in %d columns or type %d in level '%s', layer '%s'%n",
+                        count, columns, types.length() - 1, levelIdentifier, layerIdentifier));
+            }
+            Map<Integer, String> typeNames = new TreeMap<>(); // of the types in this layer, by number
+            entityTypes.forEach((identifier, type) -> {
+                if (types.get(type)) {
+                    typeNames.put(type, identifier);
+                }
+            });
+            String tag = levelIdentifier + "_" + layerIdentifier;
+            graphics.createOutput(tag + "_entities");
+            graphics.outputString(String.format("; level: '%s', layer '%s'%n", levelIdentifier, layerIdentifier));
+            graphics.outputString(String.format("; entities %d bytes SoA 4 x %d: xtile, width, type, value sorted by xtile%n", 4 * count, count));
+            StringJoiner typeList = new StringJoiner(", ");
+            typeNames.forEach((type, identifier) -> typeList.add(type + " " + identifier));
+            graphics.outputString(String.format("; types: %s%n", typeList));
+            int wrap = Math.max(1, Math.min(count, 256));
+            for (int row = 0; row < 4; row++) {
+                graphics.appendByteRows(Arrays.copyOfRange(entities, row * count, (row + 1) * count), count, wrap);
+            }
+            graphics.createOutput(tag + "_entityindex");
+            graphics.outputString(String.format("; entityindex %d bytes (%d columns), entities of column x are entityindex[x] up to entityindex[x+1]%n",
+                    columns + 1, columns));
+            graphics.appendByteRows(entityIndex, columns + 1, Math.min(columns + 1, 256));
+            stats.count("entities", count);
+        }
+    }
+
+    /** numbers entity identifiers of 'layer' not seen before in the document, in document order (on the reading thread) */
+    private void addEntityTypes(LdtkReader.Layer layer) {
+        if ("Entities".equals(layer.type)) {
+            for (int e = 0; e < layer.entityCount; e++) {
+                entityTypes.putIfAbsent(layer.entityIdentifier[e], entityTypes.size());
+            }
+        }
+    }
+
+    /** returns the first field value of an entity as a number: booleans are 1 and 0, no field is 0, and any other text Integer.MIN_VALUE */
+    private static int entityValue(String value) {
+        if (value == null || value.equals("null") || value.equals("false")) {
+            return 0;
+        }
+        if (value.equals("true")) {
+            return 1;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return Integer.MIN_VALUE;
+        }
+    }
+
+    /** outputs the tiles shared by layers with -shared, after all tilemaps */
+    private void outputSharedTiles(Sprite2asm graphics, Map<String, TilePool> sharedPools) {
+        for (TilePool pool : sharedPools.values()) {
+            if (pool.tileSet.count > 256) {
+                graphics.warning(String.format("WARNING: tilemap overflows with %d tiles in tileset '%s'%n",
+                        pool.tileSet.count - 256, new File(pool.path).getName()));
+            }
+            outputTiles(graphics, pool, baseName(pool.path) + "_" + pool.tileWidth, String.format("; tileset '%s' shared by %d layers%n", new File(pool.path).getName(), pool.layers), fileStats);
+        }
+    }
+
+    /** with -stats, prints the timings and counts of converting 'filename' as a JSON line on stderr */
+    private void reportStats(Sprite2asm graphics, String filename) {
+        if (stats) {
+            fileStats.count("bytes", graphics.byteCount());
+            err.println(fileStats.toJson("Ldtk2asm", filename));
+        }
+    }
+
+    /** outputs the tiles, their colors and the chars they use, starting with 'comment', to files starting with 'tag' */
+    private void outputTiles(Sprite2asm graphics, TilePool pool, String tag, String comment, Sprite2asm.Stats stats) {
+        Sprite2asm tileset = pool.tileset;
+        int tileWidth = pool.tileWidth;
+        int tileSize = pool.tileSize;
+        int tileSetCount = pool.tileSet.count;
+        int[] tiles = pool.tileSet.tiles;
+        // create optimized charset with only the chars used by the tiles in the map
+        int[] optimizedMap = new int[tileset.charset().length / 8]; // charset index to optimized index, -1 if unused
+        Arrays.fill(optimizedMap, -1);
+        byte[] optimizedCharset = new byte[tileset.charset().length];
+        int optimizedCharsetCount = 0;
+        if (chEmpty >= 0 && tileset.emptyChar() >= 0) {
+            optimizedMap[tileset.emptyChar()] = chEmpty;
+        }
+        for (int i = 0; i < tileSetCount; i++) {
+            for (int j = 0; j < tileSize/2; j++) { // only consider char indices, not color bytes in tiles
+                int charnr = tiles[i * tileSize + j];
+                if (optimizedMap[charnr] >= 0) {
+                    continue;
+                }
+                if (pool.hasEmptyChar && optimizedCharsetCount + chOffset == chEmpty) {
+                    optimizedCharsetCount++; // skip over the empty char; array is already empty, no need to fill
+                }
+                optimizedMap[charnr] = optimizedCharsetCount + chOffset;
+                System.arraycopy(tileset.charset(), charnr * 8, optimizedCharset, optimizedCharsetCount * 8, 8);
+                optimizedCharsetCount++;
+            }
+        }
+        graphics.createOutput(tag + "_tiles");
+        graphics.outputString(comment);
+        graphics.outputString(String.format("; tiles %d bytes %dx%d SoA %d x %d (%d uniques)%n",
+                tileSetCount * tileSize/2, tileWidth, tileWidth, tileSetCount, tileSize/2, tileSetCount));
+        byte[] tileRow = new byte[tileSetCount];
+        for (int c = 0; c < tileSize/2; c++) {
+            for (int i = 0; i < tileSetCount; i++) {
+                tileRow[i] = (byte)optimizedMap[tiles[i * tileSize + c]];
+            }
+            graphics.appendByteRows(tileRow, tileSetCount, tileSetCount);
+        }
+        graphics.createOutput(tag + "_colortiles");
+        graphics.outputString(String.format("; colortiles %d bytes %dx%d SoA %d x %d (%d uniques)%n",
+                tileSetCount * tileSize/2, tileWidth, tileWidth, tileSetCount, tileSize/2, tileSetCount));
+        for (int c = tileSize/2; c < tileSize; c++) {
+            for (int i = 0; i < tileSetCount; i++) {
+                tileRow[i] = (byte)tiles[i * tileSize + c];
+            }
+            graphics.appendByteRows(tileRow, tileSetCount, tileSetCount);
+        }
+        graphics.createOutput(tag + "_charset");
+        graphics.outputString(String.format("; charset %d bytes (%d uniques)%n", optimizedCharsetCount * 8, optimizedCharsetCount));
+        graphics.outputString(String.format("; NOTE tiles assume these chars start at index $%02x (offset %d)%n", chOffset, chOffset * 8));
+        graphics.appendByteRows(optimizedCharset, optimizedCharsetCount * 8, 8);
+        stats.count("uniques", tileSetCount);
+        stats.count("chars", optimizedCharsetCount);
+    }
+
+    /** Unique tiles taken from a tileset by one layer, or by all layers using it with -shared */
+    private static final class TilePool {
+        final Sprite2asm tileset;
+        final String path;
+        final int tileWidth;
+        final int tileSize;
+        final TileSet tileSet;
+        private final int[] tile;
+        boolean hasEmptyChar = false; // some tile uses the empty char
+        int layers; // number of layers that added tiles
+
+        TilePool(Sprite2asm tileset, String path, int tileWidth) {
+            this.tileset = tileset;
+            this.path = path;
+            this.tileWidth = tileWidth;
+            tileSize = tileWidth * tileWidth * 2; // first the chars, followed by a color byte per character
+            tileSet = new TileSet(tileSize);
+            tile = new int[tileSize];
+        }
+
+        /** returns the index of the tile at char position 'ctx','cty' in the tileset, adding it if new */
+        int add(int ctx, int cty) {
+            tileset.extractTile(ctx, cty, tileWidth, tileWidth, tile);
+            return add();
+        }
+
+        /** returns the index of a tile of empty chars, adding it if new, or -1 if the tileset has no empty char */
+        int addEmpty() {
+            if (tileset.emptyChar() < 0) {
+                return -1;
+            }
+            Arrays.fill(tile, 0, tileSize/2, tileset.emptyChar());
+            Arrays.fill(tile, tileSize/2, tileSize, tileset.emptyCharColor());
+            return add();
+        }
+
+        private int add() {
+            int tilenr = tileSet.findOrAdd(tile);
+            if (tilenr == tileSet.count - 1) { // added
+                int j = 0;
+                while (!hasEmptyChar && j < tileSize/2) {
+                    if (tile[j++] == tileset.emptyChar()) {
+                        hasEmptyChar = true;
+                    }
+                }
+            }
+            return tilenr;
+        }
+    }
+
+    /** returns the canonical path of the tileset of 'layer', which can be relative to 'filename' (as is for convert()) */
+    private String tilesetPath(String filename, LdtkReader.Layer layer) throws IOException {
+        String tilesetPath = layer.tilesetRelPath;
+        if (tilesetImages != null) {
+            return tilesetPath;
+        }
+        if (!tilesetPath.contains(":") && !tilesetPath.startsWith("/")) {
+            String folder = new File(filename).getParent();
+            tilesetPath = new File(folder, tilesetPath).getCanonicalPath();
+        }
+        return tilesetPath;
+    }
+
+    /** returns the name of file 'path' without its extension */
+    private static String baseName(String path) {
+        return new File(path).getName().replaceFirst("\\.\\w+$", "");
+    }
+
+    /** returns a hash of everything the output of 'layer' depends on */
+    private String fingerprint(LdtkReader.Layer layer, String tilesetPath) {
+        MessageDigest digest = Sprite2asm.Cache.sha256();
+        digest.update(String.format("ch%d/%d|fill%d|", chOffset, chEmpty, fill).getBytes(StandardCharsets.UTF_8));
+        if (tilesetPath != null) {
+            File tileset = new File(tilesetPath);
+            digest.update(String.format("%s|%d|%d|", tilesetPath, tileset.lastModified(), tileset.length()).getBytes(StandardCharsets.UTF_8));
+        }
+        layer.digest(digest);
+        if ("Entities".equals(layer.type)) { // their numbers depend on the layers before
+            StringBuilder types = new StringBuilder();
+            for (int e = 0; e < layer.entityCount; e++) {
+                types.append(entityTypes.get(layer.entityIdentifier[e])).append('|');
+            }
+            digest.update(types.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return Sprite2asm.Cache.hex(digest.digest());
+    }
+
+    /** Growable store of unique tiles with a hashed fingerprint index */
+    static final class TileSet {
+        final int tileSize;
+        int[] tiles; // 'count' tiles of 'tileSize' ints each
+        int count;
+        private int[] fingerprints; // fingerprint per tile
+        private int[] slots; // tile index + 1, 0 marks a free slot
+
+        TileSet(int tileSize) {
+            this.tileSize = tileSize;
+            tiles = new int[tileSize * 256];
+            fingerprints = new int[256];
+            slots = new int[512];
+        }
+
+        private static int fingerprint(int[] tile) {
+            int h = 1;
+            for (int v : tile) {
+                h = (h ^ v) * 0x9E3779B1;
+            }
+            return h ^ (h >>> 16);
+        }
+
+        /** returns index of 'tile', or adds a copy of 'tile' and returns 'count - 1' if not found */
+        int findOrAdd(int[] tile) {
+            int fp = fingerprint(tile);
+            int mask = slots.length - 1;
+            int slot = fp & mask;
+            while (slots[slot] != 0) {
+                int i = slots[slot] - 1;
+                if (fingerprints[i] == fp && Arrays.equals(tiles, i * tileSize, (i + 1) * tileSize, tile, 0, tileSize)) {
+                    return i;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (count == fingerprints.length) {
+                tiles = Arrays.copyOf(tiles, tiles.length * 2);
+                fingerprints = Arrays.copyOf(fingerprints, fingerprints.length * 2);
+            }
+            System.arraycopy(tile, 0, tiles, count * tileSize, tileSize);
+            fingerprints[count] = fp;
+            slots[slot] = ++count;
+            if (count * 2 > slots.length) {
+                rehash();
+            }
+            return count - 1;
+        }
+
+        private void rehash() {
+            slots = new int[slots.length * 2];
+            int mask = slots.length - 1;
+            for (int i = 0; i < count; i++) {
+                int slot = fingerprints[i] & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = i + 1;
+            }
+        }
+    }
+
+    /** returns index of 'tile' in the first 'tileCount' tiles in 'tileset' or 'tileCount' if not found */
+    static int findTile(int[] tile, int[] tileset, int tileCount) {
+        int i = 0;
+        int size = tile.length;
+        while (i < tileCount) {
+            int j = 0;
+            while (j < size && tile[j] == tileset[i * size + j])
+                j++;
+            if (j == size)
+                return i;
+            i++;
+        }
+        return i;
+    }
+
+}
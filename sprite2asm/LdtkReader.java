@@ -0,0 +1,437 @@
+package sprite2asm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+// Streaming reader for LDtk project files: pulls one layer instance at a time, without building the JSON object tree
+
+final class LdtkReader implements Closeable {
+
+    /** A single layer instance, with its grid tiles and entities in primitive arrays */
+    static final class Layer {
+        final String level;    // identifier of the level
+        String identifier;
+        String type;           // "Tiles", "Entities", "IntGrid" or "AutoLayer"
+        int cWid;              // width in cells
+        int cHei;              // height in cells
+        int gridSize;          // cell size in pixels (square)
+        String tilesetRelPath; // null if the layer has no tileset
+
+        int gridTileCount;
+        int[] srcX = new int[0];   // top-left pixel in the tileset
+        int[] srcY = new int[0];
+        int[] pxX = new int[0];    // top-left pixel in the layer
+        int[] pxY = new int[0];
+        int[] coordId = new int[0]; // cell index in the layer ("d"), -1 if not given
+
+        int entityCount;
+        int[] entityX = new int[0];     // top-left x in pixels
+        int[] entityWidth = new int[0]; // width in pixels
+        String[] entityIdentifier = new String[0];
+        String[] entityValue = new String[0]; // value of the first field, null if the entity has no fields
+
+        Layer(String level) {
+            this.level = level;
+        }
+
+        private void addGridTile(int srcX, int srcY, int pxX, int pxY, int coordId) {
+            if (gridTileCount == this.srcX.length) {
+                int capacity = Math.max(256, gridTileCount * 2);
+                this.srcX = Arrays.copyOf(this.srcX, capacity);
+                this.srcY = Arrays.copyOf(this.srcY, capacity);
+                this.pxX = Arrays.copyOf(this.pxX, capacity);
+                this.pxY = Arrays.copyOf(this.pxY, capacity);
+                this.coordId = Arrays.copyOf(this.coordId, capacity);
+            }
+            this.srcX[gridTileCount] = srcX;
+            this.srcY[gridTileCount] = srcY;
+            this.pxX[gridTileCount] = pxX;
+            this.pxY[gridTileCount] = pxY;
+            this.coordId[gridTileCount] = coordId;
+            gridTileCount++;
+        }
+
+        private void addEntity(int x, int width, String identifier, String value) {
+            if (entityCount == entityX.length) {
+                int capacity = Math.max(16, entityCount * 2);
+                entityX = Arrays.copyOf(entityX, capacity);
+                entityWidth = Arrays.copyOf(entityWidth, capacity);
+                entityIdentifier = Arrays.copyOf(entityIdentifier, capacity);
+                entityValue = Arrays.copyOf(entityValue, capacity);
+            }
+            entityX[entityCount] = x;
+            entityWidth[entityCount] = width;
+            entityIdentifier[entityCount] = identifier;
+            entityValue[entityCount] = value;
+            entityCount++;
+        }
+
+        /** adds everything the output of this layer depends on to 'digest' */
+        void digest(MessageDigest digest) {
+            update(digest, String.format("%s|%s|%s|%d|%d|%d|%s|", level, identifier, type, cWid, cHei, gridSize, tilesetRelPath));
+            update(digest, srcX, gridTileCount);
+            update(digest, srcY, gridTileCount);
+            update(digest, pxX, gridTileCount);
+            update(digest, pxY, gridTileCount);
+            update(digest, coordId, gridTileCount);
+            update(digest, entityX, entityCount);
+            update(digest, entityWidth, entityCount);
+            for (int i = 0; i < entityCount; i++) {
+                update(digest, entityIdentifier[i] + "|" + entityValue[i] + "|");
+            }
+        }
+
+        private static void update(MessageDigest digest, String str) {
+            digest.update(str.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static void update(MessageDigest digest, int[] values, int count) {
+            byte[] bytes = new byte[count * 4];
+            for (int i = 0; i < count; i++) {
+                bytes[i * 4] = (byte) (values[i] >> 24);
+                bytes[i * 4 + 1] = (byte) (values[i] >> 16);
+                bytes[i * 4 + 2] = (byte) (values[i] >> 8);
+                bytes[i * 4 + 3] = (byte) values[i];
+            }
+            digest.update(bytes);
+        }
+    }
+
+    private enum State { PROJECT, LEVELS, LEVEL, LAYERS, DONE }
+
+    private final Reader reader;
+    private final char[] buffer = new char[1 << 16];
+    private int position;
+    private int limit;
+
+    private State state = State.PROJECT;
+    private boolean started; // opening brace of the project has been read
+    private boolean ldtk; // header has been checked
+    private String levelIdentifier;
+
+    LdtkReader(InputStream in) {
+        reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * returns the next layer instance of the next level, or null after the last one; throws when the project has
+     * no LDtk header, which can come after the levels, so only once all layers have been returned
+     */
+    Layer nextLayer() throws IOException {
+        while (true) {
+            switch (state) {
+                case PROJECT:
+                    if (!started) {
+                        expect('{');
+                        started = true;
+                    }
+                    if (!hasNext('}')) {
+                        if (!ldtk) {
+                            throw new IOException("Not a LDtk Project JSON");
+                        }
+                        state = State.DONE;
+                        break;
+                    }
+                    String key = readKey();
+                    if (key.equals("__header__")) {
+                        readHeader();
+                    } else if (key.equals("levels")) { // members can be in any order, the header is checked at the end
+                        expect('[');
+                        state = State.LEVELS;
+                    } else {
+                        skipValue(null);
+                    }
+                    break;
+                case LEVELS:
+                    if (hasNext(']')) {
+                        expect('{');
+                        levelIdentifier = null;
+                        state = State.LEVEL;
+                    } else {
+                        state = State.PROJECT;
+                    }
+                    break;
+                case LEVEL:
+                    if (hasNext('}')) {
+                        String levelKey = readKey();
+                        if (levelKey.equals("identifier")) {
+                            levelIdentifier = readString();
+                        } else if (levelKey.equals("layerInstances") && peek() == '[') {
+                            expect('[');
+                            state = State.LAYERS;
+                        } else {
+                            skipValue(null);
+                        }
+                    } else {
+                        state = State.LEVELS;
+                    }
+                    break;
+                case LAYERS:
+                    if (hasNext(']')) {
+                        return readLayer();
+                    }
+                    state = State.LEVEL;
+                    break;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    private void readHeader() throws IOException {
+        expect('{');
+        while (hasNext('}')) {
+            if (readKey().equals("fileType")) {
+                if (!"LDtk Project JSON".equals(readString())) {
+                    throw new IOException("Not a LDtk Project JSON");
+                }
+                ldtk = true;
+            } else {
+                skipValue(null);
+            }
+        }
+    }
+
+    private Layer readLayer() throws IOException {
+        Layer layer = new Layer(levelIdentifier);
+        expect('{');
+        while (hasNext('}')) {
+            switch (readKey()) {
+                case "__identifier": layer.identifier = readString(); break;
+                case "__type": layer.type = readString(); break;
+                case "__cWid": layer.cWid = readInt(); break;
+                case "__cHei": layer.cHei = readInt(); break;
+                case "__gridSize": layer.gridSize = readInt(); break;
+                case "__tilesetRelPath": layer.tilesetRelPath = readString(); break;
+                case "gridTiles": readGridTiles(layer); break;
+                case "entityInstances": readEntities(layer); break;
+                default: skipValue(null);
+            }
+        }
+        return layer;
+    }
+
+    private void readGridTiles(Layer layer) throws IOException {
+        int[] pair = new int[2];
+        expect('[');
+        while (hasNext(']')) {
+            int srcX = 0, srcY = 0, pxX = 0, pxY = 0, coordId = -1;
+            expect('{');
+            while (hasNext('}')) {
+                switch (readKey()) {
+                    case "src": readInts(pair); srcX = pair[0]; srcY = pair[1]; break;
+                    case "px": readInts(pair); pxX = pair[0]; pxY = pair[1]; break;
+                    case "d": pair[0] = -1; readInts(pair); coordId = pair[0]; break;
+                    default: skipValue(null);
+                }
+            }
+            layer.addGridTile(srcX, srcY, pxX, pxY, coordId);
+        }
+    }
+
+    private void readEntities(Layer layer) throws IOException {
+        int[] pair = new int[2];
+        expect('[');
+        while (hasNext(']')) {
+            int x = 0, width = 0;
+            String identifier = null, value = null;
+            expect('{');
+            while (hasNext('}')) {
+                switch (readKey()) {
+                    case "px": readInts(pair); x = pair[0]; break;
+                    case "width": width = readInt(); break;
+                    case "__identifier": identifier = readString(); break;
+                    case "fieldInstances": value = readFirstFieldValue(); break;
+                    default: skipValue(null);
+                }
+            }
+            layer.addEntity(x, width, identifier, value);
+        }
+    }
+
+    /** returns the text of the "__value" of the first field, null if there are no fields */
+    private String readFirstFieldValue() throws IOException {
+        String value = null;
+        boolean first = true;
+        expect('[');
+        while (hasNext(']')) {
+            expect('{');
+            while (hasNext('}')) {
+                if (readKey().equals("__value") && first) {
+                    StringBuilder text = new StringBuilder();
+                    if (peek() == '"') {
+                        text.append(readString());
+                    } else {
+                        skipValue(text);
+                    }
+                    value = text.toString();
+                } else {
+                    skipValue(null);
+                }
+            }
+            first = false;
+        }
+        return value;
+    }
+
+    // JSON tokens
+
+    /** reads the elements of an array of numbers into 'values', ignoring elements that don't fit */
+    private void readInts(int[] values) throws IOException {
+        int i = 0;
+        expect('[');
+        while (hasNext(']')) {
+            int value = readInt();
+            if (i < values.length) {
+                values[i++] = value;
+            }
+        }
+    }
+
+    private int readInt() throws IOException {
+        StringBuilder text = new StringBuilder();
+        skipValue(text);
+        String number = text.toString();
+        try {
+            return Integer.parseInt(number);
+        } catch (NumberFormatException e) {
+            try {
+                return (int) Double.parseDouble(number);
+            } catch (NumberFormatException e2) {
+                throw new IOException("number expected instead of " + number);
+            }
+        }
+    }
+
+    private String readKey() throws IOException {
+        String key = readString();
+        expect(':');
+        return key;
+    }
+
+    /** reads a string, or null */
+    private String readString() throws IOException {
+        if (peek() == 'n') {
+            skipValue(null);
+            return null;
+        }
+        expect('"');
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            char c = next();
+            if (c == '"') {
+                return sb.toString();
+            }
+            if (c == '\\') {
+                c = next();
+                switch (c) {
+                    case 'b': c = '\b'; break;
+                    case 'f': c = '\f'; break;
+                    case 'n': c = '\n'; break;
+                    case 'r': c = '\r'; break;
+                    case 't': c = '\t'; break;
+                    case 'u': c = (char) Integer.parseInt("" + next() + next() + next() + next(), 16); break;
+                    default: break; // '"', '\\' and '/' are themselves
+                }
+            }
+            sb.append(c);
+        }
+    }
+
+    /** skips a value, appending its text to 'text' if not null */
+    private void skipValue(StringBuilder text) throws IOException {
+        char c = peek();
+        if (c == '{' || c == '[') {
+            int depth = 0;
+            boolean inString = false;
+            do {
+                c = next();
+                if (text != null) text.append(c);
+                if (inString) {
+                    if (c == '\\') {
+                        c = next();
+                        if (text != null) text.append(c);
+                    } else if (c == '"') {
+                        inString = false;
+                    }
+                } else if (c == '"') {
+                    inString = true;
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+            } while (depth > 0);
+        } else if (c == '"') {
+            String str = readString();
+            if (text != null) text.append(str);
+        } else {
+            // number, true, false or null
+            while (",}] \t\r\n".indexOf(c) < 0) {
+                if (text != null) text.append(c);
+                position++;
+                c = peekRaw();
+            }
+        }
+    }
+
+    /** skips ',' and returns true if another element follows, or skips 'close' and returns false */
+    private boolean hasNext(char close) throws IOException {
+        char c = peek();
+        if (c == close) {
+            position++;
+            return false;
+        }
+        if (c == ',') {
+            position++;
+        }
+        return true;
+    }
+
+    private void expect(char expected) throws IOException {
+        char c = peek();
+        if (c != expected) {
+            throw new IOException(String.format("'%c' expected instead of '%c'", expected, c));
+        }
+        position++;
+    }
+
+    /** returns the next character that is not whitespace, without consuming it */
+    private char peek() throws IOException {
+        char c = peekRaw();
+        while (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+            position++;
+            c = peekRaw();
+        }
+        return c;
+    }
+
+    private char peekRaw() throws IOException {
+        if (position == limit) {
+            limit = reader.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit < 0) {
+                limit = 0;
+                throw new IOException("unexpected end of file");
+            }
+        }
+        return buffer[position];
+    }
+
+    private char next() throws IOException {
+        char c = peekRaw();
+        position++;
+        return c;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
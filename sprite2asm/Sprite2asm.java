@@ -0,0 +1,2906 @@
+package sprite2asm;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.InflaterInputStream;
+
+// Convert all kinds of graphic data to asm
+
+public class Sprite2asm {
+
+    // bump when conversions produce different output, so cached outputs of older versions are not used
+    static final int VERSION = 1;
+    static final File CACHE_DIR = new File(".sprite2asm-cache");
+
+    // color specifiers
+    private static final Pattern BGPATTERN = Pattern.compile("-bg([0-9a-fA-F])"); // -bgX bg (forces hires)
+    private static final Pattern FGPATTERN = Pattern.compile("-fg([0-9a-fA-F])"); // -fgX fg (forces hires)
+    private static final Pattern CMPATTERN = Pattern.compile("-cm([0-9a-fA-F])"); // -cmX enable colormap with default color
+    private static final Pattern MCPATTERN = Pattern.compile("-mc([0-9a-fA-F])([0-9a-fA-F])"); // -mcXX mc1 mc2
+    // charset specifiers
+    private static final Pattern CHPATTERN = Pattern.compile("-ch([0-9a-fA-F][0-9a-fA-F])"); // -chXX create charset
+    // other specifiers
+    private static final Pattern SYPATTERN = Pattern.compile("-sy([0-9a-fA-F][0-9a-fA-F])"); // -syXX starting sprite y-offset in hex
+    private static final Pattern BINPATTERN = Pattern.compile("-bin"); // -bin output to binary files
+    private static final Pattern ASMPATTERN = Pattern.compile("-asm"); // -asm output source code to files
+    private static final Pattern DIALECTPATTERN = Pattern.compile("-(acme|kick|dreamass)"); // source code syntax, more can be given
+    private static final Pattern PACKPATTERN = Pattern.compile("-(rle|lz|pack)"); // -rle, -lz or -pack (smallest of both) packs binary files
+    private static final Pattern CACHEPATTERN = Pattern.compile("-cache"); // -cache reuse outputs of earlier conversions
+    private static final Pattern JPATTERN = Pattern.compile("-j([0-9]+)"); // -jN extract with N threads (0 for all cores)
+    private static final Pattern BATCHPATTERN = Pattern.compile("-batch([0-9]+)"); // -batchN convert N files at a time (0 for all cores)
+    static final Pattern WATCHPATTERN = Pattern.compile("-watch"); // -watch convert again when files change
+    private static final Pattern STATSPATTERN = Pattern.compile("-stats"); // -stats report timings and counts on stderr
+    private static final Pattern DEDUPPATTERN = Pattern.compile("-dedup"); // -dedup output identical sprites once, with an index table
+    private static final Pattern STREAMPATTERN = Pattern.compile("-stream"); // -stream read the image a band of rows at a time
+    private static final Pattern SHAREDPATTERN = Pattern.compile("-shared"); // -shared one charset for all files of the run
+    private static final Pattern DICTPATTERN = Pattern.compile("-dict"); // -dict like -shared, keeping the charset between runs
+
+    static final long WATCH_QUIET_MILLIS = 250; // wait for changes to settle, editors can write files in steps
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("-server")) {
+            Server.serve();
+        } else if (args.length > 0 && args[0].equals("-client")) {
+            String[] rest = Arrays.copyOfRange(args, 1, args.length);
+            if (!Server.request("Sprite2asm", rest)) {
+                run(rest, System.out, System.err);
+            }
+        } else {
+            run(args, System.out, System.err);
+        }
+    }
+
+    /** runs the command line 'args', printing the console output to 'out' and warnings to 'err' */
+    static void run(String[] args, PrintStream out, PrintStream err) throws Exception {
+        StringBuilder arguments = new StringBuilder();
+        Options options = Options.DEFAULTS;
+        int batch = 1;
+        boolean watch = false;
+        List<Job> jobs = new ArrayList<>();
+        List<File> files = new ArrayList<>();
+        CharDictionary dictionary = null; // chars of the files with -shared or -dict
+        Options sharedOptions = null; // of the last of those files, for the output of the shared charset
+        boolean keep = false; // -dict
+        for (String arg : args) {
+            Matcher b = BATCHPATTERN.matcher(arg);
+            if (b.matches()) {
+                batch = Integer.parseInt(b.group(1));
+                if (batch == 0) batch = Runtime.getRuntime().availableProcessors();
+            } else if (WATCHPATTERN.matcher(arg).matches()) {
+                watch = true;
+            } else if (arg.startsWith("-")) {
+                arguments.append(arg);
+            } else {
+                // options are resolved in order, as some of them carry over to the next file
+                String extraArguments = arguments.toString();
+                Options fileOptions = Options.parse(arg + extraArguments, options);
+                CharDictionary fileDictionary = null;
+                if (fileOptions.shared && fileOptions.chOffset >= 0) {
+                    if (dictionary == null) {
+                        dictionary = fileOptions.dict ? CharDictionary.load(CharDictionary.FILE) : new CharDictionary();
+                    }
+                    fileDictionary = dictionary;
+                    sharedOptions = fileOptions;
+                    keep |= fileOptions.dict;
+                }
+                CharDictionary chars = fileDictionary;
+                jobs.add((console, errors) -> convert(arg, extraArguments, fileOptions, chars, console, errors));
+                files.add(new File(arg));
+                options = fileOptions;
+                arguments.setLength(0); // reset
+            }
+        }
+        Job shared = null; // outputs the shared charset after all files
+        if (dictionary != null) {
+            CharDictionary chars = dictionary;
+            Options sharedOutput = sharedOptions;
+            boolean save = keep;
+            shared = (console, errors) -> chars.output(sharedOutput, save, console, errors);
+            batch = 1; // char indices depend on the order of the files
+        }
+        if (watch) {
+            watch(jobs, files, shared, out, err);
+        } else if (batch <= 1) {
+            for (Job job : jobs) {
+                job.run(out, err);
+            }
+            if (shared != null) {
+                shared.run(out, err);
+            }
+        } else {
+            runBatch(jobs, batch, out, err);
+        }
+    }
+
+    /** runs all jobs, and 'after' if not null, and then runs them again each time their file changes, until interrupted */
+    private static void watch(List<Job> jobs, List<File> files, Job after, PrintStream out, PrintStream err) throws IOException, InterruptedException {
+        try (Watcher watcher = new Watcher()) {
+            for (int i = 0; i < jobs.size(); i++) {
+                watcher.watch(files.get(i));
+                runWatched(jobs.get(i), files.get(i), out, err);
+            }
+            if (after != null) {
+                after.run(out, err);
+            }
+            err.format("watching %d files%n", files.size());
+            while (true) {
+                Set<Path> changed = watcher.awaitChanges();
+                boolean ran = false;
+                for (int i = 0; i < jobs.size(); i++) {
+                    if (changed.contains(Watcher.path(files.get(i)))) {
+                        runWatched(jobs.get(i), files.get(i), out, err);
+                        ran = true;
+                    }
+                }
+                if (ran && after != null) {
+                    after.run(out, err);
+                }
+            }
+        }
+    }
+
+    private static void runWatched(Job job, File file, PrintStream out, PrintStream err) {
+        try {
+            job.run(out, err);
+        } catch (IOException | RuntimeException e) {
+            // keep watching, the file may be saved again
+            err.format("ERROR: converting %s: %s%n", file, e);
+        }
+    }
+
+    /** Converts a single file, writing its text output to 'out' and warnings to 'err' */
+    private interface Job {
+        void run(PrintStream out, PrintStream err) throws IOException;
+    }
+
+    private static void convert(String srcfilename, String extraArguments, Options fileOptions, CharDictionary dictionary,
+                                PrintStream out, PrintStream err) throws IOException {
+        Sprite2asm instance = new Sprite2asm();
+        instance.emitter = new Emitter(out, err);
+        instance.dictionary = dictionary;
+        instance.processFile(srcfilename, extraArguments, fileOptions);
+    }
+
+    /**
+     * runs 'jobs' on 'threads' threads, printing the output of each job to 'out' and its warnings to 'err' in order
+     * once it is done, so they can't mix with those of other jobs
+     */
+    private static void runBatch(List<Job> jobs, int threads, PrintStream out, PrintStream err) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<ByteArrayOutputStream[]>> results = new ArrayList<>();
+            for (Job job : jobs) {
+                results.add(pool.submit(() -> {
+                    ByteArrayOutputStream[] buffers = {new ByteArrayOutputStream(), new ByteArrayOutputStream()};
+                    try (PrintStream console = new PrintStream(buffers[0]); PrintStream errors = new PrintStream(buffers[1])) {
+                        job.run(console, errors);
+                    }
+                    return buffers;
+                }));
+            }
+            for (Future<ByteArrayOutputStream[]> result : results) {
+                try {
+                    ByteArrayOutputStream[] buffers = result.get();
+                    buffers[0].writeTo(out);
+                    out.flush();
+                    buffers[1].writeTo(err);
+                    err.flush();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private byte[] pixels; // palette index per pixel, row by row (of the current band with -stream)
+    private BandReader bands; // reads the image a band at a time with -stream, null if loaded at once
+    private int width;
+    private int height;
+    private int width8;
+    private int height8;
+    private String header;
+    private String baseName;
+    private Emitter emitter = new Emitter(System.out);
+    private final Stats stats = new Stats();
+
+    private Options options = Options.DEFAULTS;
+
+    /**
+     * Conversion options of a single file, taken from its name and the arguments before it,
+     * or built from DEFAULTS with the 'with' methods for convert()
+     */
+    public static final class Options implements Cloneable {
+        /** hires sprites with the transparent color as background */
+        public static final Options DEFAULTS = new Options();
+
+        // only set on a new instance by parse() or a 'with' method, an Options doesn't change once returned
+        private int pixelWidth = 1;      // Hires (1) or multicolor (2). Defaults to hires
+        private int fgCol = -1;          // Foreground color. Disabled by default, takes prio over bgCol
+        private int bgCol = -1;          // Background color. Defaults to transparent index (or -1 if no such color)
+        private int mc1Col = -1;         // Multicolor 1
+        private int mc2Col = -1;         // Multicolor 2
+        private int defaultCol = -1;     // >= 0 enables charmap in charset mode
+        private int chOffset = -1;       // >= 0 enables charset mode. Default is sprites
+        private int syOffset;            // Sprite y-offset
+        private boolean dedup;           // Output identical sprites once, with an index table
+        private boolean binary;          // Output binary files. Defaults to source code
+        private int packing = Packer.NONE; // Packing of binary files, see Packer. Defaults to none
+        private boolean asmFiles;        // Output source code to files instead of the console
+        private int dialects;            // Bit per Dialect.ALL index to output source code in, 0 for ACME only
+        private boolean shared;          // Chars go into one charset for all files of the run, output after them
+        private boolean dict;            // The shared charset is kept in a file between runs
+        private boolean cache;           // Reuse the outputs of earlier conversions of the same file and settings
+        private int threads = 1;         // Threads to extract cells with. Defaults to 1 (no fork-join pool)
+        private boolean stats;           // Report timings and counts on stderr
+        private boolean stream;          // Read the image a band of rows at a time instead of all at once
+
+        private Options() {
+        }
+
+        /** returns a copy to change, for the 'with' methods */
+        private Options copy() {
+            try {
+                return (Options) clone();
+            } catch (CloneNotSupportedException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        /** extract formatting instructions from string; hires/multicolor and multicolors carry over from 'previous' */
+        static Options parse(String str, Options previous) {
+            Options o = new Options();
+            o.pixelWidth = previous.pixelWidth;
+            o.mc1Col = previous.mc1Col;
+            o.mc2Col = previous.mc2Col;
+            Matcher bg = BGPATTERN.matcher(str);
+            // bgCol stays -1 when not given, it is picked from the transparent color index when loading
+            if (bg.find()) { // "-bgX" sets bg index and forces hires
+                o.bgCol = Integer.parseInt(bg.group(1), 16);
+                o.pixelWidth = 1;
+            }
+            Matcher fg = FGPATTERN.matcher(str);
+            if (fg.find()) { // "-fgX" sets fg index and forces hires
+                o.fgCol = Integer.parseInt(fg.group(1), 16);
+                o.pixelWidth = 1;
+            }
+            Matcher mc = MCPATTERN.matcher(str);
+            if (mc.find()) { // -mcXX sets mc1 and mc2 indices and forces mc
+                o.mc1Col = Integer.parseInt(mc.group(1),16);
+                o.mc2Col = Integer.parseInt(mc.group(2),16);
+                o.pixelWidth = 2;
+            }
+            Matcher ch = CHPATTERN.matcher(str);
+            if (ch.find()) { // -chXX sets charmap mode
+                o.chOffset = Integer.parseInt(ch.group(1),16);
+            }
+            Matcher sy = SYPATTERN.matcher(str);
+            if (sy.find()) { // -syXX starting sprite y-offset
+                o.syOffset = Integer.parseInt(sy.group(1),16);
+            }
+            Matcher cm = CMPATTERN.matcher(str);
+            if (cm.find()) { // -cmX enable colormap with default color
+                o.defaultCol = Integer.parseInt(cm.group(1),16);
+            }
+            Matcher dd = DEDUPPATTERN.matcher(str);
+            o.dedup = dd.find(); // -dedup output identical sprites once
+            Matcher bin = BINPATTERN.matcher(str);
+            o.binary = bin.find(); // -bin output to binary files
+            Matcher pack = PACKPATTERN.matcher(str);
+            if (pack.find()) { // -rle, -lz or -pack packs binary files
+                o.packing = pack.group(1).equals("rle") ? Packer.RLE : pack.group(1).equals("lz") ? Packer.LZ : Packer.BEST;
+            }
+            Matcher asm = ASMPATTERN.matcher(str);
+            o.asmFiles = asm.find(); // -asm output source code to files
+            Matcher d = DIALECTPATTERN.matcher(str);
+            while (d.find()) { // -acme, -kick and -dreamass select the syntax of source code
+                o.dialects |= 1 << Dialect.index(d.group(1));
+            }
+            o.dict = DICTPATTERN.matcher(str).find(); // -dict keep the shared charset between runs
+            o.shared = o.dict || SHAREDPATTERN.matcher(str).find(); // -shared one charset for all files
+            Matcher c = CACHEPATTERN.matcher(str);
+            o.cache = c.find(); // -cache reuse outputs of earlier conversions
+            Matcher j = JPATTERN.matcher(str);
+            if (j.find()) { // -jN extract cells with N threads
+                o.threads = Integer.parseInt(j.group(1));
+                if (o.threads == 0) o.threads = Runtime.getRuntime().availableProcessors();
+            }
+            Matcher st = STATSPATTERN.matcher(str);
+            o.stats = st.find(); // -stats report timings and counts
+            Matcher sr = STREAMPATTERN.matcher(str);
+            o.stream = sr.find(); // -stream read the image a band at a time
+            return o;
+        }
+
+        /** returns the settings that determine the output (threads, stats and stream don't) */
+        @Override
+        public String toString() {
+            return String.format("pw%d,fg%d,bg%d,mc%d/%d,cm%d,ch%d,sy%d,dd%b,bin%b,pack%d,asm%b,src%d,sh%b",
+                    pixelWidth, fgCol, bgCol, mc1Col, mc2Col, defaultCol, chOffset, syOffset, dedup, binary, packing, asmFiles, dialects, shared);
+        }
+
+        /** returns the dialects to output source code in, the first one also goes to the console */
+        private List<Dialect> outputDialects() {
+            List<Dialect> list = new ArrayList<>();
+            for (int i = 0; i < Dialect.ALL.length; i++) {
+                if ((dialects & (1 << i)) != 0) {
+                    list.add(Dialect.ALL[i]);
+                }
+            }
+            return list.isEmpty() ? List.of(Dialect.ACME) : list;
+        }
+
+        /** returns 1 for hires, 2 for multicolor */
+        public int pixelWidth() {
+            return pixelWidth;
+        }
+
+        /** returns the foreground color, or -1 if none */
+        public int fgCol() {
+            return fgCol;
+        }
+
+        /** returns the background color, or -1 for the transparent color */
+        public int bgCol() {
+            return bgCol;
+        }
+
+        /** returns multicolor 1, or -1 if not set */
+        public int mc1Col() {
+            return mc1Col;
+        }
+
+        /** returns multicolor 2, or -1 if not set */
+        public int mc2Col() {
+            return mc2Col;
+        }
+
+        /** returns the default color of the colormap, or -1 if there is no colormap */
+        public int defaultCol() {
+            return defaultCol;
+        }
+
+        /** returns the first char of the charset, or -1 to convert to sprites */
+        public int chOffset() {
+            return chOffset;
+        }
+
+        /** returns the y-offset of the first row of sprites */
+        public int syOffset() {
+            return syOffset;
+        }
+
+        /** returns whether identical sprites are output once, with an index table */
+        public boolean dedup() {
+            return dedup;
+        }
+
+        /** returns whether binary files are output instead of source code */
+        public boolean binary() {
+            return binary;
+        }
+
+        /** returns the packing of binary files, "rle", "lz" or "pack", or null if not packed */
+        public String packing() {
+            return packing == Packer.RLE ? "rle" : packing == Packer.LZ ? "lz" : packing == Packer.BEST ? "pack" : null;
+        }
+
+        /** returns whether source code goes to files instead of the console */
+        public boolean asmFiles() {
+            return asmFiles;
+        }
+
+        /** returns the names of the dialects to output source code in, e.g. "acme", the first one also goes to the console */
+        public List<String> dialects() {
+            List<String> names = new ArrayList<>();
+            for (Dialect dialect : outputDialects()) {
+                names.add(dialect.name);
+            }
+            return Collections.unmodifiableList(names);
+        }
+
+        /** returns whether chars go into one charset for all files of the run */
+        public boolean shared() {
+            return shared;
+        }
+
+        /** returns whether the shared charset is kept in a file between runs */
+        public boolean dict() {
+            return dict;
+        }
+
+        /** returns whether outputs of earlier conversions of the same file and settings are reused */
+        public boolean cache() {
+            return cache;
+        }
+
+        /** returns the number of threads to extract cells with */
+        public int threads() {
+            return threads;
+        }
+
+        /** returns whether timings and counts are reported */
+        public boolean stats() {
+            return stats;
+        }
+
+        /** returns whether the image is read a band of rows at a time */
+        public boolean stream() {
+            return stream;
+        }
+
+        /** 'bgCol' as background (keeps the current mode) */
+        public Options withBgCol(int bgCol) {
+            Options o = copy();
+            o.bgCol = bgCol;
+            return o;
+        }
+
+        /** hires with 'fgCol' as foreground, like -fgX */
+        public Options withFgCol(int fgCol) {
+            Options o = copy();
+            o.pixelWidth = 1;
+            o.fgCol = fgCol;
+            return o;
+        }
+
+        /** multicolor with 'mc1Col' and 'mc2Col', like -mcXY */
+        public Options withMulticolor(int mc1Col, int mc2Col) {
+            Options o = copy();
+            o.pixelWidth = 2;
+            o.mc1Col = mc1Col;
+            o.mc2Col = mc2Col;
+            return o;
+        }
+
+        /** charset and charmap instead of sprites, with chars starting at 'chOffset', like -chXX */
+        public Options withChOffset(int chOffset) {
+            Options o = copy();
+            o.chOffset = chOffset;
+            return o;
+        }
+
+        /** colormap too, with 'defaultCol' for chars without a color of their own, like -cmX */
+        public Options withColormap(int defaultCol) {
+            Options o = copy();
+            o.defaultCol = defaultCol;
+            return o;
+        }
+
+        /** identical sprites once with an index table if 'dedup', like -dedup */
+        public Options withDedup(boolean dedup) {
+            Options o = copy();
+            o.dedup = dedup;
+            return o;
+        }
+
+        /** sprites start 'syOffset' pixels down, like -syXX */
+        public Options withSyOffset(int syOffset) {
+            Options o = copy();
+            o.syOffset = syOffset;
+            return o;
+        }
+
+        /** extracts with 'threads' threads, like -jN */
+        public Options withThreads(int threads) {
+            Options o = copy();
+            o.threads = threads;
+            return o;
+        }
+    }
+
+    private final Encoder encoder = new Encoder();
+
+    /** Encodes objects from the pixels, keeping track of the palette of the object being encoded */
+    private final class Encoder {
+        private int c0; // palette color 0 (background)
+        private int c1; // palette color 1 (mc1)
+        private int c2; // palette color 2 (mc2)
+        private int c3; // palette color 3 (char/sprite color)
+
+        /** Remaps pixel to hires bit pattern according to palette and updates palette information */
+        private int pixelToBits1(int pixel) {
+            if (pixel == c3) return 0b1;
+            if (c0 < 0) c0 = pixel;
+            if (pixel == c0) return 0b0;
+            if (c3 < 0) c3 = pixel;
+            // color outside palette
+            return (options.fgCol >= 0) ? 0b0 : 0b1;
+        }
+
+        /** Remaps pixel to multicolor bit pattern according to palette and updates palette information */
+        private int pixelToBits2(int pixel) {
+            if (pixel == c0) return 0b00;
+            if (c1 < 0) c1 = pixel;
+            if (pixel == c1) return 0b01;
+            if (c2 < 0) c2 = pixel;
+            if (pixel == c2) return (options.chOffset < 0) ? 0b11 : 0b10; // sprites are different
+            if (c3 < 0) c3 = pixel;
+            // color outside palette
+            return (options.chOffset < 0) ? 0b10 : 0b11; // sprites are different
+        }
+
+        private void extractObject(int xoff, int yoff, int w, int h, byte[] buf, int myPixelWidth) {
+            int bufoffset = 0;
+            int bitcount = 0;
+            c0 = options.bgCol; c1 = options.mc1Col; c2 = options.mc2Col; c3 = options.fgCol;
+            int b = 0;
+            for (int y = yoff; y < h + yoff; y++) {
+                int row = y * width;
+                for (int x = xoff; x < w + xoff; x += myPixelWidth) {
+                    int pixel = pixels[row + x] & 0xff;
+                    b <<= myPixelWidth;
+                    int colorBits = (myPixelWidth > 1) ? pixelToBits2(pixel) : pixelToBits1(pixel);
+                    b |= colorBits;
+                    bitcount += myPixelWidth;
+                    if (bitcount == 8) {
+                        buf[bufoffset++] = (byte)b;
+                        bitcount = 0;
+                        b = 0;
+                    }
+                }
+            }
+        }
+
+        // Heuristic:
+        //  a hires char is detected when:
+        //   1) there are exactly 2 colors with one being bgIndex, and
+        //   2) there is at least one single width pixel
+        // Note that a 2 color character with only double width pixels will map to color bits 11 anyway
+        //  if the color is not mc1Index or mc2Index, so its binary content is the same for mc and hires!
+        private boolean isHiresChar(int xoff, int yoff) {
+            int hiresColor = -1; // starts off unknown
+            boolean pixelsDiffer = false; // start off assuming all pixels are double width
+            for (int y = 0; y < 8; y++) {
+                int row = (y + yoff) * width + xoff;
+                for (int x = 0; x < 8; x += 2) {
+                    int pixel1 = pixels[row + x] & 0xff;
+                    int pixel2 = pixels[row + x + 1] & 0xff;
+                    hiresColor = calcFgColor(hiresColor, pixel1);
+                    hiresColor = calcFgColor(hiresColor, pixel2);
+                    if ((pixel1 != options.bgCol && pixel1 != hiresColor) ||
+                        (pixel2 != options.bgCol && pixel2 != hiresColor)) {
+                        return false; // 3rd color detected
+                    }
+                    if (pixel1 != pixel2) {
+                        pixelsDiffer = true;
+                        // don't return here to continue to find 3rd color
+                    }
+                }
+            }
+            return pixelsDiffer;
+        }
+
+        private int calcFgColor(int hiresColor, int pixel) {
+            return (hiresColor < 0 && pixel != options.bgCol) ? pixel : hiresColor;
+        }
+
+        // per char lookup tables for encodeChar, indexed by palette index (-1 if not mapped yet)
+        private final int[] hiresTable = newTable(); // hires bit (bit 0) and 3rd color flag (bit 1)
+        private final int[] mcTable = newTable();    // multicolor bits
+        private final int[] mapped = new int[128];   // palette indices mapped in the tables for the current char
+
+        /**
+         * Classifies and encodes a multicolor char in a single pass and returns the detected pixel width.
+         * Gives the same bytes and palette as isHiresChar followed by extractObject, but both encodings are
+         * built at once and each palette index is only mapped once per char.
+         */
+        private int encodeChar(int xoff, int yoff, byte[] buf) {
+            int h0 = options.bgCol, h3 = options.fgCol; // hires palette (c1 and c2 are left alone)
+            int m1 = options.mc1Col, m2 = options.mc2Col, m3 = options.fgCol; // multicolor palette (c0 is bgCol)
+            int hiresColor = -1; // see isHiresChar
+            int mappedCount = 0;
+            int flags = 0; // 3rd color flags of all pixels
+            boolean pixelsDiffer = false;
+            long hires = 0; // hires encoding, row 0 in the top byte
+            for (int y = 0; y < 8; y++) {
+                int row = (y + yoff) * width + xoff;
+                int hb = 0;
+                int mb = 0;
+                int first = 0;
+                for (int x = 0; x < 8; x++) {
+                    int pixel = pixels[row + x] & 0xff;
+                    int h = hiresTable[pixel];
+                    if (h < 0) { // same mapping as pixelToBits1 and calcFgColor
+                        if (pixel == h3) {
+                            h = 0b1;
+                        } else {
+                            if (h0 < 0) h0 = pixel;
+                            if (pixel == h0) {
+                                h = 0b0;
+                            } else {
+                                if (h3 < 0) h3 = pixel;
+                                h = (options.fgCol >= 0) ? 0b0 : 0b1;
+                            }
+                        }
+                        hiresColor = calcFgColor(hiresColor, pixel);
+                        if (pixel != options.bgCol && pixel != hiresColor) {
+                            h |= 0b10; // 3rd color
+                        }
+                        hiresTable[pixel] = h;
+                        mapped[mappedCount++] = pixel;
+                    }
+                    hb = (hb << 1) | (h & 1);
+                    flags |= h;
+                    if ((x & 1) == 0) {
+                        int m = mcTable[pixel];
+                        if (m < 0) { // same mapping as pixelToBits2 for chars
+                            if (pixel == options.bgCol) {
+                                m = 0b00;
+                            } else {
+                                if (m1 < 0) m1 = pixel;
+                                if (pixel == m1) {
+                                    m = 0b01;
+                                } else {
+                                    if (m2 < 0) m2 = pixel;
+                                    if (pixel == m2) {
+                                        m = 0b10;
+                                    } else {
+                                        if (m3 < 0) m3 = pixel;
+                                        m = 0b11;
+                                    }
+                                }
+                            }
+                            mcTable[pixel] = m;
+                            mapped[mappedCount++] = pixel;
+                        }
+                        mb = (mb << 2) | m;
+                        first = pixel;
+                    } else if (pixel != first) {
+                        pixelsDiffer = true;
+                    }
+                }
+                hires = (hires << 8) | hb;
+                buf[y] = (byte) mb;
+            }
+            for (int i = 0; i < mappedCount; i++) {
+                hiresTable[mapped[i]] = -1;
+                mcTable[mapped[i]] = -1;
+            }
+            if ((flags & 0b10) == 0 && pixelsDiffer) {
+                for (int y = 7; y >= 0; y--) {
+                    buf[y] = (byte) hires;
+                    hires >>>= 8;
+                }
+                c0 = h0; c1 = options.mc1Col; c2 = options.mc2Col; c3 = h3;
+                return 1;
+            }
+            c0 = options.bgCol; c1 = m1; c2 = m2; c3 = m3;
+            return 2;
+        }
+    }
+
+    private static int[] newTable() {
+        int[] table = new int[256];
+        Arrays.fill(table, -1);
+        return table;
+    }
+
+    // extract tile from charmap (2*tileW*tileH bytes characters and color bytes)
+    void extractTile(int cx, int cy, int tileW, int tileH, int[] buf) {
+        int i = 0;
+        for (int y = cy; y < cy + tileH; y++) {
+            for (int x = cx; x < cx + tileW; x++) {
+                buf[i + tileW * tileH] = colormap[y * width8 + x];
+                buf[i++] = charAt(y * width8 + x);
+            }
+        }
+    }
+
+    void load(String srcfilename, String extraArguments) throws IOException {
+        load(srcfilename, Options.parse(srcfilename + extraArguments, options));
+    }
+
+    /** loads 'image', with options taken from 'name' and 'extraArguments' like a file */
+    void load(BufferedImage image, String name, String extraArguments) throws IOException {
+        load(image, Options.parse(name + extraArguments, options));
+    }
+
+    private void load(String srcfilename, Options fileOptions) throws IOException {
+        BufferedImage image = ImageIO.read(new File(srcfilename));
+        if (image == null) {
+            throw new IOException("unsupported image format: " + srcfilename);
+        }
+        load(image, fileOptions);
+    }
+
+    private void load(BufferedImage image, Options fileOptions) throws IOException {
+        setImage(image.getColorModel(), image.getWidth(), image.getHeight(), fileOptions);
+        pixels = decode(image);
+    }
+
+    /** opens 'srcfilename' to be read a band at a time */
+    private void open(String srcfilename, Options fileOptions) throws IOException {
+        BandReader reader = new BandReader(new File(srcfilename));
+        try {
+            setImage(reader.colorModel, reader.width, reader.height, fileOptions);
+        } catch (IOException e) {
+            reader.close();
+            throw e;
+        }
+        bands = reader;
+    }
+
+    private void setImage(ColorModel colorModel, int width, int height, Options fileOptions) throws IOException {
+        if (!(colorModel instanceof IndexColorModel)) {
+            throw new IOException("image should have palette");
+        }
+        options = fileOptions;
+        if (options.bgCol < 0) { // pick bg from transparent color index (-1 if not found)
+            options = options.withBgCol(((IndexColorModel) colorModel).getTransparentPixel());
+        }
+        this.width = width;
+        this.height = height;
+        width8 = width/8;
+        height8 = height/8;
+    }
+
+    /** returns the palette indices of all pixels in 'image' as one array, row by row */
+    static byte[] decode(BufferedImage image) {
+        Raster raster = image.getRaster(); // unlike getData() this doesn't copy
+        int w = raster.getWidth();
+        int h = raster.getHeight();
+        int tx = raster.getSampleModelTranslateX();
+        int ty = raster.getSampleModelTranslateY();
+        SampleModel sm = raster.getSampleModel();
+        DataBuffer db = raster.getDataBuffer();
+        byte[] plane = new byte[w * h];
+        if (db instanceof DataBufferByte && db.getNumBanks() == 1 && sm.getNumBands() == 1) {
+            byte[] data = ((DataBufferByte) db).getData();
+            if (sm instanceof ComponentSampleModel && ((ComponentSampleModel) sm).getPixelStride() == 1) {
+                // 8 bits per pixel: use the rows as they are
+                ComponentSampleModel csm = (ComponentSampleModel) sm;
+                int stride = csm.getScanlineStride();
+                int offset = db.getOffset() + csm.getOffset(-tx, -ty);
+                if (offset == 0 && stride == w && data.length == w * h) {
+                    return data;
+                }
+                for (int y = 0; y < h; y++) {
+                    System.arraycopy(data, offset + y * stride, plane, y * w, w);
+                }
+                return plane;
+            }
+            if (sm instanceof MultiPixelPackedSampleModel) {
+                // 1, 2 or 4 bits per pixel: unpack all pixels of each byte at once
+                MultiPixelPackedSampleModel mpsm = (MultiPixelPackedSampleModel) sm;
+                int bits = mpsm.getPixelBitStride();
+                int mask = (1 << bits) - 1;
+                int stride = mpsm.getScanlineStride();
+                int bitOffset = mpsm.getBitOffset(-tx);
+                if (bitOffset == 0) {
+                    for (int y = 0; y < h; y++) {
+                        int src = db.getOffset() + mpsm.getOffset(-tx, y - ty);
+                        int dst = y * w;
+                        int end = dst + w;
+                        while (dst < end) {
+                            int b = data[src++];
+                            for (int shift = 8 - bits; shift >= 0 && dst < end; shift -= bits) {
+                                plane[dst++] = (byte) ((b >> shift) & mask);
+                            }
+                        }
+                    }
+                    return plane;
+                }
+            }
+        }
+        // any other layout: fetch the samples a row at a time
+        int[] row = new int[w];
+        for (int y = 0; y < h; y++) {
+            raster.getSamples(raster.getMinX(), raster.getMinY() + y, w, 1, 0, row);
+            for (int x = 0; x < w; x++) {
+                plane[y * w + x] = (byte) row[x];
+            }
+        }
+        return plane;
+    }
+
+    /**
+     * Reads an image a band of rows at a time for -stream, so only the band has to fit in memory.
+     * Non-interlaced palette PNGs are inflated row by row in one pass; other images are read through source
+     * regions, for which a reader may have to decode everything before the band again.
+     */
+    static final class BandReader implements Closeable {
+        final int width;
+        final int height;
+        final ColorModel colorModel;
+        private final ImageInputStream input;
+        private final ImageReader reader;
+        private final PngRows png; // null when reading source regions
+        private int y; // first row of the next band
+
+        BandReader(File file) throws IOException {
+            input = ImageIO.createImageInputStream(file);
+            if (input == null) {
+                throw new IOException("unable to read " + file);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                input.close();
+                throw new IOException("unsupported image format: " + file);
+            }
+            reader = readers.next();
+            try {
+                reader.setInput(input, false, true);
+                width = reader.getWidth(0);
+                height = reader.getHeight(0);
+                colorModel = reader.getImageTypes(0).next().getColorModel();
+                png = "png".equalsIgnoreCase(reader.getFormatName()) ? PngRows.open(file, width) : null;
+            } catch (IOException | RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /** decodes the next 'rows' rows into 'band', a palette index per pixel row by row */
+        void read(byte[] band, int rows) throws IOException {
+            rows = Math.min(rows, height - y);
+            if (rows <= 0) {
+                return;
+            }
+            if (png != null) {
+                for (int i = 0; i < rows; i++) {
+                    png.readRow(band, i * width);
+                }
+            } else {
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle(0, y, width, rows));
+                System.arraycopy(decode(reader.read(0, param)), 0, band, 0, width * rows);
+            }
+            y += rows;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.dispose();
+            try {
+                if (png != null) {
+                    png.close();
+                }
+            } finally {
+                input.close();
+            }
+        }
+    }
+
+    /** Decodes the rows of a non-interlaced palette PNG one after another */
+    static final class PngRows implements Closeable {
+        private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+        private static final int IHDR = 0x49484452;
+        private static final int IDAT = 0x49444154;
+
+        private final DataInputStream rows; // inflated IDAT data
+        private final int width;
+        private final int bits;
+        private byte[] previous; // unfiltered bytes of the previous row
+        private byte[] current;
+
+        private PngRows(DataInputStream rows, int width, int bits) {
+            this.rows = rows;
+            this.width = width;
+            this.bits = bits;
+            int stride = (width * bits + 7) / 8;
+            previous = new byte[stride];
+            current = new byte[stride];
+        }
+
+        /** returns the rows of PNG 'file', or null if it isn't a non-interlaced palette PNG */
+        static PngRows open(File file, int width) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readLong() != SIGNATURE) {
+                    in.close();
+                    return null;
+                }
+                while (true) {
+                    int length = in.readInt();
+                    int type = in.readInt();
+                    if (type == IHDR) {
+                        in.readInt(); // width
+                        in.readInt(); // height
+                        int bits = in.readUnsignedByte();
+                        int colorType = in.readUnsignedByte();
+                        in.readUnsignedByte(); // compression
+                        in.readUnsignedByte(); // filter method
+                        int interlace = in.readUnsignedByte();
+                        in.skipNBytes(length - 13 + 4); // and CRC
+                        if (colorType != 3 || interlace != 0) {
+                            in.close();
+                            return null;
+                        }
+                        return new PngRows(new DataInputStream(new InflaterInputStream(new ImageData(in))), width, bits);
+                    }
+                    in.skipNBytes(length + 4L);
+                }
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        /** unfilters the next row and writes its palette indices to 'band' from 'offset' */
+        void readRow(byte[] band, int offset) throws IOException {
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+            int filter = rows.readUnsignedByte();
+            rows.readFully(current);
+            unfilter(filter, current, previous);
+            if (bits == 8) {
+                System.arraycopy(current, 0, band, offset, width);
+                return;
+            }
+            int mask = (1 << bits) - 1;
+            int dst = offset;
+            int end = offset + width;
+            for (int i = 0; dst < end; i++) {
+                int b = current[i];
+                for (int shift = 8 - bits; shift >= 0 && dst < end; shift -= bits) {
+                    band[dst++] = (byte) ((b >> shift) & mask);
+                }
+            }
+        }
+
+        /** undoes PNG 'filter' on 'row', with 1 byte per pixel or less */
+        private static void unfilter(int filter, byte[] row, byte[] previous) throws IOException {
+            switch (filter) {
+                case 0: // none
+                    break;
+                case 1: // sub
+                    for (int i = 1; i < row.length; i++) {
+                        row[i] += row[i - 1];
+                    }
+                    break;
+                case 2: // up
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] += previous[i];
+                    }
+                    break;
+                case 3: // average
+                    for (int i = 0; i < row.length; i++) {
+                        int left = i > 0 ? row[i - 1] & 0xff : 0;
+                        row[i] += (byte) ((left + (previous[i] & 0xff)) >> 1);
+                    }
+                    break;
+                case 4: // paeth
+                    for (int i = 0; i < row.length; i++) {
+                        int a = i > 0 ? row[i - 1] & 0xff : 0;
+                        int b = previous[i] & 0xff;
+                        int c = i > 0 ? previous[i - 1] & 0xff : 0;
+                        int p = a + b - c;
+                        int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+                        row[i] += (byte) ((pa <= pb && pa <= pc) ? a : (pb <= pc) ? b : c);
+                    }
+                    break;
+                default:
+                    throw new IOException("unknown PNG filter " + filter);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            rows.close();
+        }
+
+        /** The data of consecutive IDAT chunks as one stream */
+        private static final class ImageData extends InputStream {
+            private final DataInputStream in;
+            private int remaining; // in the current chunk
+            private boolean done;
+
+            ImageData(DataInputStream in) throws IOException {
+                this.in = in;
+                while (true) { // skip to the first IDAT chunk
+                    int length = in.readInt();
+                    if (in.readInt() == IDAT) {
+                        remaining = length;
+                        return;
+                    }
+                    in.skipNBytes(length + 4L);
+                }
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                while (remaining == 0) {
+                    if (done) {
+                        return -1;
+                    }
+                    in.skipNBytes(4); // CRC
+                    int length = in.readInt();
+                    if (in.readInt() != IDAT) {
+                        done = true;
+                        return -1;
+                    }
+                    remaining = length;
+                }
+                int n = in.read(b, off, Math.min(len, remaining));
+                if (n < 0) {
+                    throw new IOException("unexpected end of PNG data");
+                }
+                remaining -= n;
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        }
+    }
+
+    private void processFile(String srcfilename, String extraArguments, Options fileOptions) throws IOException {
+        stats.start();
+        String key = null;
+        setHeader("Sprite2asm", extraArguments, srcfilename);
+        if (fileOptions.cache && dictionary == null) { // cached outputs would leave their chars out of the shared charset
+            key = Cache.key(fileOptions.toString(), new File(srcfilename));
+            boolean restored = restoreFromCache(key);
+            stats.lap("cache");
+            if (restored) {
+                stats.count("cached", 1);
+                reportStats(fileOptions, srcfilename);
+                return;
+            }
+        }
+        if (fileOptions.stream) {
+            open(srcfilename, fileOptions); // decoded band by band while converting
+        } else {
+            load(srcfilename, fileOptions);
+        }
+        stats.lap("decode");
+        try {
+            if (options.chOffset >= 0) {
+                convertChars();
+            } else {
+                convertSprites();
+            }
+        } finally {
+            if (bands != null) {
+                bands.close();
+                bands = null;
+            }
+        }
+        closeOutput();
+        stats.lap("emit");
+        if (key != null) {
+            storeInCache(key, Collections.emptyList());
+            stats.lap("cache");
+        }
+        reportStats(fileOptions, srcfilename);
+    }
+
+    /**
+     * Converts 'image' in-process with 'options', without printing anything or writing files.
+     * Every call has its own state, so calls can run concurrently.
+     */
+    public static Result convert(BufferedImage image, Options options) throws IOException {
+        Sprite2asm instance = new Sprite2asm();
+        instance.emitter = Emitter.capturing();
+        instance.header = "";
+        instance.load(image, options);
+        if (instance.options.chOffset >= 0) {
+            instance.convertChars();
+        } else {
+            instance.convertSprites();
+        }
+        return instance.emitter.result();
+    }
+
+    /** returns the outputs of an in-process conversion, like convert() does */
+    Result result() {
+        return emitter.result();
+    }
+
+    /** starts an in-process conversion, keeping all outputs for result() */
+    void capture() {
+        emitter = Emitter.capturing();
+        header = "";
+    }
+
+    /** Outputs of an in-process conversion as bytes, by the name their files would get */
+    public static final class Result {
+        private final Map<String, byte[]> outputs;
+        private final List<String> warnings;
+
+        Result(Map<String, byte[]> outputs, List<String> warnings) {
+            this.outputs = Collections.unmodifiableMap(outputs);
+            this.warnings = Collections.unmodifiableList(warnings);
+        }
+
+        /** returns the charset, or null if not converted to chars */
+        public byte[] charset() {
+            return outputs.get("charset");
+        }
+
+        /** returns the charmap, a byte per cell row by row, or null if not converted to chars */
+        public byte[] charmap() {
+            return outputs.get("charmap");
+        }
+
+        /** returns the colormap, a byte per cell row by row, or null if there is none */
+        public byte[] colormap() {
+            return outputs.get("colormap");
+        }
+
+        /** returns the non-empty sprites of 64 bytes each, or null if converted to chars */
+        public byte[] sprites() {
+            return outputs.get("sprites");
+        }
+
+        /** returns output 'name', e.g. "Level_0_Background_tilemap" for Ldtk2asm, or null if there is none */
+        public byte[] output(String name) {
+            return outputs.get(name);
+        }
+
+        /** returns all outputs in the order they were made */
+        public Map<String, byte[]> outputs() {
+            return outputs;
+        }
+
+        /** returns the warnings, without line breaks */
+        public List<String> warnings() {
+            return warnings;
+        }
+    }
+
+    /** with -stats, prints the timings and counts of converting 'srcfilename' as a JSON line on stderr */
+    private void reportStats(Options fileOptions, String srcfilename) {
+        if (fileOptions.stats) {
+            stats.count("bytes", emitter.byteCount());
+            emitter.errors.println(stats.toJson("Sprite2asm", srcfilename));
+        }
+    }
+
+    /** returns the settings that determine the output, for cache keys */
+    String settings() {
+        return options.toString();
+    }
+
+    /** writes the outputs cached for 'key' with the current header and returns true, or starts recording outputs and returns false */
+    boolean restoreFromCache(String key) throws IOException {
+        List<Emitter.Output> outputs = new Cache(CACHE_DIR).load(key, header, emitter.errors);
+        if (outputs != null) {
+            emitter.replay(outputs);
+            return true;
+        }
+        emitter.record();
+        return false;
+    }
+
+    /** keeps all outputs from now on */
+    void record() {
+        emitter.record();
+    }
+
+    /** returns the outputs written since record() */
+    List<Emitter.Output> recorded() {
+        return emitter.recorded();
+    }
+
+    /** writes 'outputs' again */
+    void replay(List<Emitter.Output> outputs) throws IOException {
+        emitter.replay(outputs);
+    }
+
+    /** stores the recorded outputs for 'key', valid as long as 'dependencies' don't change */
+    void storeInCache(String key, List<File> dependencies) throws IOException {
+        new Cache(CACHE_DIR).store(key, dependencies, header, emitter.recorded());
+    }
+
+    private byte[] charset;
+    private int charsetSize;
+    private int[] charmap; // char index (plus chOffset) per cell, null while charmapBytes holds them
+    private byte[] charmapBytes; // a byte per cell instead of charmap with -stream, as long as every index fits
+    private byte[] colormap;
+    private int emptyChar = -1; // not found
+    private CharDictionary dictionary; // shared charset with -shared, null for a charset of its own
+
+    /** Chars of all files converted with -shared in a run, kept in FILE between runs with -dict */
+    static final class CharDictionary {
+        static final File FILE = new File("shared_charset.dict");
+
+        final CharIndex index = new CharIndex(256);
+        byte[] charset = new byte[256 * 8];
+        int size;
+
+        CharDictionary() {
+            index.putIfAbsent(0, 0); // the empty char comes first, so it has the same index for all files
+            size = 1;
+        }
+
+        /** returns the chars saved in 'file' in their order, or only the empty char if there is no such file */
+        static CharDictionary load(File file) throws IOException {
+            CharDictionary dictionary = new CharDictionary();
+            if (!file.isFile()) {
+                return dictionary;
+            }
+            byte[] chars = Files.readAllBytes(file.toPath());
+            if (chars.length == 0 || chars.length % 8 != 0 || CharIndex.pack(chars) != 0) {
+                throw new IOException("not a shared charset: " + file);
+            }
+            dictionary.charset = Arrays.copyOf(chars, Math.max(chars.length, dictionary.charset.length));
+            dictionary.size = chars.length / 8;
+            for (int i = 1; i < dictionary.size; i++) {
+                if (dictionary.index.putIfAbsent(CharIndex.pack(Arrays.copyOfRange(chars, i * 8, i * 8 + 8)), i) != i) {
+                    throw new IOException("not a shared charset, char " + i + " is there twice: " + file);
+                }
+            }
+            return dictionary;
+        }
+
+        /** outputs the charset as 'shared_charset', like the files with 'options' output theirs, and saves it if 'save' */
+        void output(Options options, boolean save, PrintStream out, PrintStream err) throws IOException {
+            Sprite2asm instance = new Sprite2asm();
+            instance.console(out, err);
+            instance.options = options;
+            instance.setHeader("Sprite2asm", "", "shared");
+            instance.createOutput("charset");
+            instance.outputString(String.format("; charset %d bytes (%d uniques) shared by the charmaps%n", size * 8, size));
+            instance.appendByteRows(charset, size * 8, 8);
+            instance.closeOutput();
+            if (save) {
+                Files.write(FILE.toPath(), Arrays.copyOf(charset, size * 8));
+            }
+        }
+    }
+
+    /** returns the charset built by buildCharmap(), with room for a char per cell */
+    byte[] charset() {
+        return charset;
+    }
+
+    /** returns the index of the empty char in charset(), -1 if there is none */
+    int emptyChar() {
+        return emptyChar;
+    }
+
+    /** returns the color of the first empty char in the charmap, if emptyChar() >= 0 */
+    int emptyCharColor() {
+        int i = 0;
+        while (charAt(i) != emptyChar + options.chOffset) {
+            i++;
+        }
+        return colormap[i];
+    }
+
+    void buildCharmap() throws IOException {
+        if (options.chOffset == -1) options = options.withChOffset(0); // force charmap feature (for when you call this externally)
+        CharIndex index;
+        if (dictionary != null) { // add to the shared charset, which starts with the empty char
+            index = dictionary.index;
+            charset = dictionary.charset;
+            charsetSize = dictionary.size;
+            emptyChar = 0;
+        } else {
+            // enough to always convert the entire image, or grown when needed with -stream
+            charset = new byte[bands != null ? 256 * 8 : width8 * height8 * 8];
+            charsetSize = 0;
+            index = new CharIndex(256);
+            emptyChar = -1; // not found
+        }
+        int known = charsetSize; // chars added by earlier files with -shared
+        charmap = bands != null ? null : new int[width8 * height8];
+        charmapBytes = bands != null ? new byte[width8 * height8] : null;
+        colormap = new byte[width8 * height8];
+        if (bands != null) {
+            // one row of chars at a time, so only that band of the image is in memory
+            pixels = new byte[width * 8];
+            long[] cells = new long[width8];
+            for (int cy = 0; cy < height8; cy++) {
+                bands.read(pixels, 8);
+                stats.lap("decode");
+                encodeCharRow(encoder, cy, 0, cells, 0);
+                stats.lap("extract");
+                addChars(index, cells, width8, cy * width8);
+                stats.lap("dedup");
+            }
+            pixels = null;
+        } else {
+            long[] cells = new long[width8 * height8]; // packed chars
+            forEachRow(height8, (encoder, cy) -> encodeCharRow(encoder, cy, cy * 8, cells, cy * width8));
+            stats.lap("extract");
+            // deduplicate in cell order so char indices are the same for any number of threads
+            addChars(index, cells, cells.length, 0);
+        }
+        if (dictionary != null) {
+            dictionary.charset = charset; // grown by addChars()
+            dictionary.size = charsetSize;
+        } else {
+            flipEmptyCharToFront();
+        }
+        stats.lap("dedup");
+        stats.count("cells", width8 * height8);
+        stats.count("uniques", charsetSize - known);
+        int mcChars = 0;
+        if (options.pixelWidth > 1) {
+            for (byte color : colormap) {
+                mcChars += (color >> 3) & 1;
+            }
+        }
+        stats.count("hires", width8 * height8 - mcChars);
+        stats.count("mc", mcChars);
+    }
+
+    /** encodes the chars of char row 'cy', which starts at pixel row 'y', into 'cells' from 'first' and their colors into the colormap */
+    private void encodeCharRow(Encoder encoder, int cy, int y, long[] cells, int first) {
+        byte[] curChar = new byte[8];
+        for (int cx = 0; cx < width8; cx++) {
+            int detectedPixelWidth;
+            if (options.pixelWidth > 1) {
+                detectedPixelWidth = encoder.encodeChar(cx * 8, y, curChar);
+            } else {
+                detectedPixelWidth = options.pixelWidth;
+                encoder.extractObject(cx * 8, y, 8, 8, curChar, options.pixelWidth);
+            }
+            // correct character color for mc
+            int uniqueIndex = (encoder.c3 < 0) ? options.defaultCol : encoder.c3;
+            if (options.pixelWidth > 1) {
+                uniqueIndex = (uniqueIndex & 0x07);
+                if (detectedPixelWidth > 1) {
+                    uniqueIndex |= 0x08; // bit 3 of character color determines mc or hires
+                }
+            }
+            colormap[cy * width8 + cx] = (byte) uniqueIndex;
+            cells[first + cx] = CharIndex.pack(curChar);
+        }
+    }
+
+    /** adds the first 'count' chars in 'cells' to the charset if new, and their indices to the charmap from 'first' */
+    private void addChars(CharIndex index, long[] cells, int count, int first) {
+        for (int j = 0; j < count; j++) {
+            int ch = index.putIfAbsent(cells[j], charsetSize);
+            if (ch == charsetSize) { // not found
+                if ((charsetSize + 1) * 8 > charset.length) {
+                    charset = Arrays.copyOf(charset, charset.length * 2);
+                }
+                CharIndex.unpack(cells[j], charset, charsetSize * 8);
+                if (emptyChar < 0 && cells[j] == 0) {
+                    emptyChar = charsetSize;
+                }
+                charsetSize++;
+            }
+            setChar(first + j, ch + options.chOffset);
+        }
+    }
+
+    /** returns the charmap entry of 'cell' */
+    private int charAt(int cell) {
+        return charmap != null ? charmap[cell] : charmapBytes[cell] & 0xff;
+    }
+
+    /** sets the charmap entry of 'cell', widening the byte charmap of -stream to ints once an entry doesn't fit a byte */
+    private void setChar(int cell, int value) {
+        if (charmap == null && value > 0xff) {
+            charmap = new int[charmapBytes.length];
+            for (int i = 0; i < charmap.length; i++) {
+                charmap[i] = charmapBytes[i] & 0xff;
+            }
+            charmapBytes = null;
+        }
+        if (charmap != null) {
+            charmap[cell] = value;
+        } else {
+            charmapBytes[cell] = (byte) value;
+        }
+    }
+
+    private void flipEmptyCharToFront() {
+        if (emptyChar > 0) {
+            System.arraycopy(charset, 0, charset, emptyChar * 8, 8);
+            Arrays.fill(charset, 0, 8, (byte) 0);
+            for (int i = 0; i < width8 * height8; i++) {
+                if (charAt(i) == options.chOffset) {
+                    setChar(i, emptyChar + options.chOffset);
+                } else if (charAt(i) == emptyChar + options.chOffset) {
+                    setChar(i, options.chOffset);
+                }
+            }
+            emptyChar = 0;
+        }
+    }
+
+    // convert characters with charset and charmap and tilemap
+    private void convertChars() throws IOException {
+        buildCharmap();
+        byte[] bytes = charmapBytes;
+        if (bytes == null) {
+            bytes = new byte[width8 * height8];
+            for (int i = 0; i < width8 * height8; i++) {
+                bytes[i] = (byte) charmap[i];
+            }
+        }
+        if (dictionary == null) { // the shared charset is output after all files
+            createOutput("charset");
+            outputString(String.format("; charset %d bytes (%d uniques)%n", charsetSize * 8, charsetSize));
+            appendByteRows(charset, charsetSize * 8, 8);
+        }
+        createOutput("charmap");
+        outputString(String.format("; charmap %d bytes (%d x %d)%n", width8 * height8, width8, height8));
+        appendMapRows(bytes);
+        if (options.defaultCol >= 0) {
+            createOutput("colormap");
+            outputString(String.format("; colormap %d bytes (%d x %d)%n", width8 * height8, width8, height8));
+            appendMapRows(colormap);
+        }
+        if (charsetSize + options.chOffset > 256) {
+            warning(String.format("WARNING: charmap overflows with %d characters; use offset -ch%02X instead%n",
+                    charsetSize + options.chOffset - 256, 256 - charsetSize));
+        }
+    }
+
+    /** appends 'map', a byte per cell, in rows of cells; with -stream a row at a time, so its text doesn't pile up */
+    private void appendMapRows(byte[] map) {
+        if (bands == null) {
+            appendByteRows(map, width8 * height8, width8);
+            return;
+        }
+        byte[] row = new byte[width8];
+        for (int cy = 0; cy < height8; cy++) {
+            System.arraycopy(map, cy * width8, row, 0, width8);
+            appendByteRows(row, width8, width8);
+            emitter.flush();
+        }
+    }
+
+    private SpriteSet uniqueSprites; // sprites output so far with -dedup, null otherwise
+    private byte[] spriteIndex; // sprite number per position in the image with -dedup, $ff if empty
+    private int spriteCount; // sprites output so far
+
+    private void convertSprites() throws IOException {
+        int rows = Math.max(0, (height - options.syOffset) / 21);
+        int columns = width / 24;
+        spriteCount = 0;
+        uniqueSprites = options.dedup ? new SpriteSet() : null;
+        spriteIndex = options.dedup ? new byte[rows * columns] : null;
+        if (bands != null) {
+            convertSpritesStreamed(rows, columns);
+        } else {
+            byte[] sprites = new byte[rows * columns * 64];
+            forEachRow(rows, (encoder, row) -> {
+                byte[] sprite = new byte[64];
+                for (int column = 0; column < columns; column++) {
+                    encoder.extractObject(column * 24, options.syOffset + row * 21, 24, 21, sprite, options.pixelWidth);
+                    System.arraycopy(sprite, 0, sprites, (row * columns + column) * 64, 64);
+                }
+            });
+            stats.lap("extract");
+            createOutput("sprites");
+            outputSprites(sprites, 0, rows * columns, columns);
+        }
+        if (spriteIndex != null) {
+            createOutput("spriteindex");
+            outputString(String.format("; spriteindex %d bytes (%d x %d), $ff for empty (%d uniques)%n",
+                    rows * columns, columns, rows, spriteCount));
+            appendByteRows(spriteIndex, rows * columns, Math.max(columns, 1));
+            if (spriteCount > 255) {
+                warning(String.format("WARNING: spriteindex overflows with %d sprites%n", spriteCount - 255));
+            }
+        }
+        stats.count("cells", rows * columns);
+        stats.count("sprites", spriteCount);
+    }
+
+    /** converts and outputs a row of sprites at a time, so only that band of the image is in memory */
+    private void convertSpritesStreamed(int rows, int columns) throws IOException {
+        pixels = new byte[width * 21];
+        for (int skip = options.syOffset; skip > 0; skip -= 21) {
+            bands.read(pixels, Math.min(skip, 21));
+        }
+        byte[] sprites = new byte[columns * 64];
+        byte[] sprite = new byte[64];
+        createOutput("sprites");
+        for (int row = 0; row < rows; row++) {
+            bands.read(pixels, 21);
+            stats.lap("decode");
+            for (int column = 0; column < columns; column++) {
+                encoder.extractObject(column * 24, 0, 24, 21, sprite, options.pixelWidth);
+                System.arraycopy(sprite, 0, sprites, column * 64, 64);
+            }
+            stats.lap("extract");
+            outputSprites(sprites, row * columns, columns, columns);
+            emitter.flush();
+            stats.lap("emit");
+        }
+        pixels = null;
+    }
+
+    /** outputs the non-empty ones of 'count' sprites in 'sprites', the first being sprite 'first' in the image */
+    private void outputSprites(byte[] sprites, int first, int count, int columns) {
+        byte[] sprite = new byte[64];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(sprites, i * 64, sprite, 0, 64);
+            int cell = first + i;
+            if (!containsAnyBits(sprite)) {
+                if (spriteIndex != null) {
+                    spriteIndex[cell] = (byte) 0xff;
+                }
+                continue;
+            }
+            if (uniqueSprites != null) {
+                int nr = uniqueSprites.findOrAdd(sprite);
+                spriteIndex[cell] = (byte) nr;
+                if (nr < spriteCount) {
+                    continue; // output before
+                }
+            }
+            outputString(String.format("; %d (%d,%d)%n", spriteCount, (cell % columns) * 24, options.syOffset + (cell / columns) * 21));
+            appendByteRows(sprite, 64, 21);
+            spriteCount++;
+        }
+    }
+
+    /** Growable store of unique 64 byte sprites with a hashed fingerprint index, like Ldtk2asm.TileSet */
+    static final class SpriteSet {
+        private byte[] sprites = new byte[64 * 64]; // 'count' sprites of 64 bytes each
+        private int count;
+        private int[] fingerprints = new int[64]; // fingerprint per sprite
+        private int[] slots = new int[128]; // sprite index + 1, 0 marks a free slot
+
+        private static int fingerprint(byte[] sprite) {
+            int h = 1;
+            for (int i = 0; i < 64; i += 4) {
+                int v = (sprite[i] & 0xff) | (sprite[i + 1] & 0xff) << 8 | (sprite[i + 2] & 0xff) << 16 | sprite[i + 3] << 24;
+                h = (h ^ v) * 0x9E3779B1;
+            }
+            return h ^ (h >>> 16);
+        }
+
+        /** returns index of 'sprite', or adds a copy of 'sprite' and returns 'count - 1' if not found */
+        int findOrAdd(byte[] sprite) {
+            int fp = fingerprint(sprite);
+            int mask = slots.length - 1;
+            int slot = fp & mask;
+            while (slots[slot] != 0) {
+                int i = slots[slot] - 1;
+                if (fingerprints[i] == fp && Arrays.equals(sprites, i * 64, (i + 1) * 64, sprite, 0, 64)) {
+                    return i;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (count == fingerprints.length) {
+                sprites = Arrays.copyOf(sprites, sprites.length * 2);
+                fingerprints = Arrays.copyOf(fingerprints, fingerprints.length * 2);
+            }
+            System.arraycopy(sprite, 0, sprites, count * 64, 64);
+            fingerprints[count] = fp;
+            slots[slot] = ++count;
+            if (count * 2 > slots.length) {
+                rehash();
+            }
+            return count - 1;
+        }
+
+        private void rehash() {
+            slots = new int[slots.length * 2];
+            int mask = slots.length - 1;
+            for (int i = 0; i < count; i++) {
+                int slot = fingerprints[i] & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = i + 1;
+            }
+        }
+    }
+
+    /** Encodes the objects in one row of the image */
+    private interface RowTask {
+        void run(Encoder encoder, int row);
+    }
+
+    /** runs 'task' for all rows, in strips on a fork-join pool with -jN or else in order on the current thread */
+    private void forEachRow(int rows, RowTask task) {
+        if (options.threads <= 1) {
+            for (int row = 0; row < rows; row++) {
+                task.run(encoder, row);
+            }
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(options.threads);
+        try {
+            pool.invoke(new Strip(task, 0, rows));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Splits rows in halves until a single row is left, which is encoded with its own palette state */
+    private final class Strip extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RowTask task;
+        private final int from;
+        private final int to;
+
+        Strip(RowTask task, int from, int to) {
+            this.task = task;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Strip(task, from, mid), new Strip(task, mid, to));
+            } else if (to > from) {
+                task.run(new Encoder(), from);
+            }
+        }
+    }
+
+    private boolean containsAnyBits(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void appendByteRows(byte[] input, int len, int wrap) {
+        emitter.appendByteRows(input, len, wrap);
+    }
+
+    /** returns index of 'tile' in the first 'tileCount' tiles in 'tileset' or 'tileCount' if not found */
+    static int findInSet(byte[] tile, byte[] tileset, int tileCount) {
+        int i = 0;
+        int size = tile.length;
+        while (i < tileCount) {
+            int j = 0;
+            while (j < size && tile[j] == tileset[i * size + j])
+                j++;
+            if (j == size)
+                return i;
+            i++;
+        }
+        return i;
+    }
+
+    /** Open addressing hash map from 8 byte characters (packed in a long) to their index in the charset */
+    static final class CharIndex {
+        private long[] keys;
+        private int[] values; // index + 1, so 0 marks a free slot
+        private int size;
+
+        CharIndex(int capacity) {
+            int n = Integer.highestOneBit(Math.max(capacity, 8) - 1) << 1;
+            keys = new long[n];
+            values = new int[n];
+        }
+
+        /** packs the first 8 bytes of 'buf' into a long */
+        static long pack(byte[] buf) {
+            long key = 0;
+            for (int i = 0; i < 8; i++) {
+                key = (key << 8) | (buf[i] & 0xff);
+            }
+            return key;
+        }
+
+        /** unpacks 'key' into 8 bytes at 'offset' in 'buf' */
+        static void unpack(long key, byte[] buf, int offset) {
+            for (int i = 7; i >= 0; i--) {
+                buf[offset + i] = (byte) key;
+                key >>>= 8;
+            }
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        /** returns index of 'key', or adds 'key' with 'index' and returns 'index' if not found */
+        int putIfAbsent(long key, int index) {
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            while (values[slot] != 0) {
+                if (keys[slot] == key) {
+                    return values[slot] - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = index + 1;
+            if (++size * 2 > keys.length) {
+                grow();
+            }
+            return index;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldValues.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != 0) {
+                    int slot = hash(oldKeys[i]) & mask;
+                    while (values[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
+
+    void setHeader(String program, String arguments, String srcpath) {
+        header = String.format("; %s %s'%s' on %s%n",
+                program,
+                arguments.isEmpty() ? "" : arguments + " ",
+                new File(srcpath).getName(),
+                new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss", Locale.ENGLISH).format(new Date()));
+        baseName = new File(srcpath).getName()
+                .replaceFirst("\\.\\w+$","") // remove extension
+                .replaceAll("-\\w*","");     // remove -[a-z0-9]*
+    }
+
+    /**
+     * returns a converter with the same header and output options that only records its outputs,
+     * for converting parts concurrently and writing them in order with replay(recorded()) on this one
+     */
+    Sprite2asm deferred() {
+        Sprite2asm part = new Sprite2asm();
+        part.emitter = Emitter.deferred();
+        part.header = header;
+        part.baseName = baseName;
+        part.options = options;
+        return part;
+    }
+
+    /** prints the console output to 'out' and warnings to 'err' */
+    void console(PrintStream out, PrintStream err) {
+        emitter = new Emitter(out, err);
+    }
+
+    /** sets the output options (-bin, -asm and packing) from 'arguments', for when you only use this for output */
+    void outputOptions(String arguments) {
+        options = Options.parse(arguments, options);
+    }
+
+    void createOutput(String tag) {
+        String fname = null;
+        List<Dialect> dialects = options.outputDialects();
+        List<Dialect> sources = List.of(); // source files besides 'fname'
+        if (emitter.isCapturing()) {
+            fname = tag;
+        } else if (options.binary) {
+            // packed files get the extension of their format once it is known
+            fname = String.format(options.packing != Packer.NONE ? "%s_%s" : "%s_%s.bin", baseName, tag);
+            if (options.asmFiles || options.dialects != 0) {
+                sources = dialects;
+            }
+        } else if (options.asmFiles || dialects.size() > 1) {
+            fname = String.format("%s_%s%s", baseName, tag, dialects.get(0).extension);
+            sources = dialects.subList(1, dialects.size());
+        }
+        emitter.open(fname, options.binary, options.binary ? options.packing : Packer.NONE, dialects.get(0));
+        for (Dialect dialect : sources) {
+            emitter.addSource(String.format("%s_%s%s", baseName, tag, dialect.extension), dialect);
+        }
+        emitter.print(header);
+    }
+
+    void outputString(String str) {
+        emitter.print(str);
+    }
+
+    void warning(String str) {
+        emitter.warning(str);
+    }
+
+    /** writes the last output */
+    void closeOutput() {
+        emitter.close();
+    }
+
+    /** returns the number of bytes emitted so far, as source or binary */
+    long byteCount() {
+        return emitter.byteCount();
+    }
+
+    /** Wall time per phase and counts of a single conversion, for -stats */
+    static final class Stats {
+        private final Map<String, Long> nanos = new LinkedHashMap<>(); // in order of the first lap of each phase
+        private final Map<String, Long> counts = new LinkedHashMap<>();
+        private long start;
+        private long last;
+
+        /** clears everything and starts timing */
+        void start() {
+            nanos.clear();
+            counts.clear();
+            start = last = System.nanoTime();
+        }
+
+        /** adds the time since the previous lap (or start) to 'phase' */
+        void lap(String phase) {
+            long now = System.nanoTime();
+            nanos.merge(phase, now - last, Long::sum);
+            last = now;
+        }
+
+        /** adds 'n' to counter 'name' */
+        void count(String name, long n) {
+            counts.merge(name, n, Long::sum);
+        }
+
+        /** adds the phase times and counts of 'other', e.g. of a part converted on another thread */
+        void add(Stats other) {
+            other.nanos.forEach((phase, n) -> nanos.merge(phase, n, Long::sum));
+            other.counts.forEach(this::count);
+        }
+
+        /** returns a single line JSON object with the phase times in milliseconds and the counts */
+        String toJson(String program, String input) {
+            StringBuilder json = new StringBuilder("{\"program\":");
+            quote(json, program);
+            json.append(",\"input\":");
+            quote(json, input);
+            json.append(String.format(Locale.ROOT, ",\"totalMs\":%.3f,\"phasesMs\":{", (last - start) / 1e6));
+            String separator = "";
+            for (Map.Entry<String, Long> phase : nanos.entrySet()) {
+                json.append(separator);
+                quote(json, phase.getKey());
+                json.append(String.format(Locale.ROOT, ":%.3f", phase.getValue() / 1e6));
+                separator = ",";
+            }
+            json.append("},\"counts\":{");
+            separator = "";
+            for (Map.Entry<String, Long> count : counts.entrySet()) {
+                json.append(separator);
+                quote(json, count.getKey());
+                json.append(':').append(count.getValue());
+                separator = ",";
+            }
+            return json.append("}}").toString();
+        }
+
+        private static void quote(StringBuilder json, String str) {
+            json.append('"');
+            for (int i = 0; i < str.length(); i++) {
+                char c = str.charAt(i);
+                if (c == '"' || c == '\\') {
+                    json.append('\\').append(c);
+                } else if (c < ' ') {
+                    json.append(String.format("\\u%04x", (int) c));
+                } else {
+                    json.append(c);
+                }
+            }
+            json.append('"');
+        }
+    }
+
+    /**
+     * Syntax of source code. Outputs are made in ACME syntax, other dialects translate it line by line:
+     * ACME style uses !byte and ; comments, KickAssembler expects .byte and // comments, DreamAss uses .db
+     */
+    static final class Dialect {
+        static final Dialect ACME = new Dialect("acme", "!byte ", ";", ".asm");
+        static final Dialect KICKASS = new Dialect("kick", ".byte ", "//", ".kick.asm");
+        static final Dialect DREAMASS = new Dialect("dreamass", ".db ", ";", ".dreamass.asm");
+        static final Dialect[] ALL = {ACME, KICKASS, DREAMASS};
+
+        final String name;      // as in the -acme, -kick and -dreamass options
+        final String bytes;     // directive of a row of bytes, with a trailing space
+        final String comment;   // starts a comment line
+        final String extension; // of source files
+
+        private Dialect(String name, String bytes, String comment, String extension) {
+            this.name = name;
+            this.bytes = bytes;
+            this.comment = comment;
+            this.extension = extension;
+        }
+
+        /** returns the index in ALL of the dialect called 'name' */
+        static int index(String name) {
+            for (int i = 0; i < ALL.length; i++) {
+                if (ALL[i].name.equals(name)) {
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException("unknown dialect " + name);
+        }
+
+        /** appends the lines of ACME source 'text' to 'out' in this syntax */
+        void translate(String text, StringBuilder out) {
+            if (this == ACME) {
+                out.append(text);
+                return;
+            }
+            int start = 0;
+            while (start < text.length()) {
+                int end = text.indexOf('\n', start) + 1;
+                if (end == 0) {
+                    end = text.length();
+                }
+                if (text.startsWith(ACME.comment, start)) {
+                    out.append(comment).append(text, start + ACME.comment.length(), end);
+                } else if (text.startsWith(ACME.bytes, start)) {
+                    out.append(bytes).append(text, start + ACME.bytes.length(), end);
+                } else {
+                    out.append(text, start, end);
+                }
+                start = end;
+            }
+        }
+    }
+
+    /** Collects the text and bytes of one output at a time and writes each output with a single flush */
+    static final class Emitter {
+        private static final char[] HEX = new char[256 * 3]; // "$xx" for every byte value
+
+        static {
+            String digits = "0123456789abcdef";
+            for (int i = 0; i < 256; i++) {
+                HEX[i * 3] = '$';
+                HEX[i * 3 + 1] = digits.charAt(i >> 4);
+                HEX[i * 3 + 2] = digits.charAt(i & 0xf);
+            }
+        }
+
+        private final PrintStream console;
+        final PrintStream errors; // warnings and errors
+        private final StringBuilder consoleText = new StringBuilder(1 << 16); // console part of the current output
+        private final StringBuilder fileText = new StringBuilder(1 << 16);    // source code of the current output file
+        private final StringBuilder warnings = new StringBuilder();           // warnings given for the current output
+        private byte[] fileBytes = new byte[1 << 16];                         // binary of the current output file
+        private int fileByteCount;
+        private long byteCount; // bytes emitted in total, as source or binary
+        private long outputStart; // byteCount when the current output started
+        private FileOutputStream file; // file of the current output, null for console only or packed
+        private String fname; // file of the current output, without extension if packed, null for console only
+        private boolean binary;
+        private int packing;
+        private boolean deferred; // outputs are only recorded, see deferred()
+        private Dialect dialect = Dialect.ACME; // of the source code on the console or in file 'fname'
+        private final List<Source> sources = new ArrayList<>(); // more source files of the current output
+        private List<Output> recorded; // outputs written so far, null when not recording
+        private Map<String, byte[]> captured; // bytes of all outputs by name, null when not capturing
+        private List<String> capturedWarnings;
+
+        /** A single written output */
+        static final class Output {
+            final String fname; // null for console only
+            final boolean binary;
+            final String consoleText;
+            final String warnings;
+            final byte[] fileData;
+            final long byteCount; // bytes emitted, see byteCount()
+
+            Output(String fname, boolean binary, String consoleText, String warnings, byte[] fileData, long byteCount) {
+                this.fname = fname;
+                this.binary = binary;
+                this.consoleText = consoleText;
+                this.warnings = warnings;
+                this.fileData = fileData;
+                this.byteCount = byteCount;
+            }
+        }
+
+        /** Source file of the current output in another dialect, or besides a binary file */
+        private static final class Source {
+            final String fname;
+            final Dialect dialect;
+            final StringBuilder text = new StringBuilder(1 << 16);
+            FileOutputStream file; // opened by the first flush(), null until then
+
+            Source(String fname, Dialect dialect) {
+                this.fname = fname;
+                this.dialect = dialect;
+            }
+        }
+
+        Emitter(PrintStream console) {
+            this(console, System.err);
+        }
+
+        Emitter(PrintStream console, PrintStream errors) {
+            this.console = console;
+            this.errors = errors;
+        }
+
+        /** returns an emitter that only records its outputs, to be written by replay() of another emitter */
+        static Emitter deferred() {
+            PrintStream none = new PrintStream(OutputStream.nullOutputStream());
+            Emitter emitter = new Emitter(none, none);
+            emitter.deferred = true;
+            emitter.record();
+            return emitter;
+        }
+
+        /** returns an emitter that keeps the bytes of each output by name, instead of printing or writing them */
+        static Emitter capturing() {
+            Emitter emitter = new Emitter(new PrintStream(OutputStream.nullOutputStream()));
+            emitter.captured = new LinkedHashMap<>();
+            emitter.capturedWarnings = new ArrayList<>();
+            return emitter;
+        }
+
+        boolean isCapturing() {
+            return captured != null;
+        }
+
+        /** returns everything captured */
+        Result result() {
+            close();
+            return new Result(captured, capturedWarnings);
+        }
+
+        /**
+         * writes the current output and starts a new one, going to file 'fname' or to the console if null, with source
+         * code in 'dialect'; a binary file is packed with 'packing' and then 'fname' gets the extension of the format used
+         */
+        void open(String fname, boolean binary, int packing, Dialect dialect) {
+            close();
+            this.dialect = dialect;
+            this.fname = null;
+            this.binary = false;
+            this.packing = Packer.NONE;
+            if (captured != null) {
+                this.fname = fname; // name of the output
+                this.binary = true;
+            } else if (fname != null && deferred) {
+                this.fname = fname; // file is written on replay
+                this.binary = binary;
+                this.packing = binary ? packing : Packer.NONE;
+                if (this.packing == Packer.NONE) {
+                    consoleText.append(fname).append(System.lineSeparator());
+                }
+            } else if (fname != null && binary && packing != Packer.NONE) {
+                this.fname = fname; // file is created once packed
+                this.binary = true;
+                this.packing = packing;
+            } else if (fname != null) {
+                try {
+                    file = new FileOutputStream(fname);
+                    this.fname = fname;
+                    this.binary = binary;
+                    consoleText.append(fname).append(System.lineSeparator());
+                } catch (IOException e) {
+                    errors.format("ERROR: unable to create file %s: %s", fname, e.getMessage());
+                }
+            }
+        }
+
+        /** adds source file 'fname' in 'dialect' to the current output, it gets all text and bytes from now on */
+        void addSource(String fname, Dialect dialect) {
+            if (captured == null) {
+                sources.add(new Source(fname, dialect));
+                consoleText.append(fname).append(System.lineSeparator());
+            }
+        }
+
+        private boolean toFile() {
+            return file != null || packing != Packer.NONE || ((captured != null || deferred) && fname != null);
+        }
+
+        /** appends 'str' to the source code; for binary files it goes to the console */
+        void print(String str) {
+            dialect.translate(str, text());
+            for (Source source : sources) {
+                source.dialect.translate(str, source.text);
+            }
+        }
+
+        private StringBuilder text() {
+            return (toFile() && !binary) ? fileText : consoleText;
+        }
+
+        void appendByteRows(byte[] input, int len, int wrap) {
+            byteCount += len;
+            if (toFile() && binary) {
+                writeByteRows(input, len);
+            } else {
+                printByteRows(input, len, wrap);
+            }
+            for (Source source : sources) {
+                printByteRows(source.text, source.dialect, input, len, wrap);
+            }
+        }
+
+        private void writeByteRows(byte[] input, int len) {
+            if (fileByteCount + len > fileBytes.length) {
+                fileBytes = Arrays.copyOf(fileBytes, Math.max(fileBytes.length * 2, fileByteCount + len));
+            }
+            System.arraycopy(input, 0, fileBytes, fileByteCount, len);
+            fileByteCount += len;
+        }
+
+        private void printByteRows(byte[] input, int len, int wrap) {
+            printByteRows(text(), dialect, input, len, wrap);
+        }
+
+        private static void printByteRows(StringBuilder text, Dialect dialect, byte[] input, int len, int wrap) {
+            int i = 0;
+            while (i < len) {
+                text.append(i % wrap == 0 ? dialect.bytes : ",");
+                text.append(HEX, (input[i++] & 0xff) * 3, 3);
+                if (i % wrap == 0) {
+                    text.append('\n');
+                }
+            }
+            if (i % wrap != 0) {
+                text.append('\n');
+            }
+        }
+
+        long byteCount() {
+            return byteCount;
+        }
+
+        /**
+         * writes the current output so far to the console and its files and forgets it, so outputs of -stream don't
+         * have to fit in memory; packed, recorded and captured outputs are kept until close()
+         */
+        void flush() {
+            if (captured != null || deferred || recorded != null || packing != Packer.NONE) {
+                return;
+            }
+            if (file != null) {
+                try {
+                    if (binary) {
+                        file.write(fileBytes, 0, fileByteCount);
+                    } else {
+                        file.write(fileText.toString().getBytes(StandardCharsets.UTF_8));
+                    }
+                } catch (IOException e) {
+                    errors.format("ERROR: writing to file: %s", e.getMessage());
+                }
+                fileByteCount = 0;
+                fileText.setLength(0);
+            }
+            for (Source source : sources) {
+                try {
+                    if (source.file == null) {
+                        source.file = new FileOutputStream(source.fname);
+                    }
+                    source.file.write(source.text.toString().getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    errors.format("ERROR: writing to file %s: %s", source.fname, e.getMessage());
+                }
+                source.text.setLength(0);
+            }
+            if (consoleText.length() > 0) {
+                console.append(consoleText);
+                console.flush();
+                consoleText.setLength(0);
+            }
+        }
+
+        /** writes the current output, if any */
+        void close() {
+            byte[] data = null;
+            if (captured != null) {
+                if (fname != null && fileByteCount > 0) { // outputs without bytes are left out
+                    byte[] bytes = Arrays.copyOf(fileBytes, fileByteCount);
+                    captured.merge(fname, bytes, (a, b) -> {
+                        byte[] both = Arrays.copyOf(a, a.length + b.length);
+                        System.arraycopy(b, 0, both, a.length, b.length);
+                        return both;
+                    });
+                }
+            } else if (packing != Packer.NONE) {
+                Packer.Packed packed = Packer.pack(fileBytes, fileByteCount, packing);
+                String format = packed.extension().substring(1);
+                if (packed.data.length < fileByteCount) {
+                    data = packed.data;
+                    fname = fname + packed.extension();
+                    consoleText.append(String.format("; packed %s %d -> %d bytes%n", format, fileByteCount, data.length));
+                } else { // incompressible, the raw file is smaller
+                    data = Arrays.copyOf(fileBytes, fileByteCount);
+                    fname = fname + ".bin";
+                    consoleText.append(String.format("; not packed, %s %d -> %d bytes%n", format, fileByteCount, packed.data.length));
+                }
+                consoleText.insert(0, fname + System.lineSeparator());
+                if (!deferred) {
+                    try (FileOutputStream out = new FileOutputStream(fname)) {
+                        out.write(data);
+                    } catch (IOException e) {
+                        errors.format("ERROR: unable to create file %s: %s", fname, e.getMessage());
+                    }
+                }
+            } else if (file != null || (deferred && fname != null)) {
+                data = binary ? Arrays.copyOf(fileBytes, fileByteCount) : fileText.toString().getBytes(StandardCharsets.UTF_8);
+                if (file != null) {
+                    try {
+                        file.write(data);
+                        file.close();
+                    } catch (IOException e) {
+                        errors.format("ERROR: writing to file: %s", e.getMessage());
+                    }
+                }
+            }
+            if (recorded != null && (data != null || consoleText.length() > 0 || warnings.length() > 0)) {
+                recorded.add(new Output(data != null ? fname : null, binary, consoleText.toString(), warnings.toString(), data,
+                        byteCount - outputStart));
+            }
+            for (Source source : sources) {
+                byte[] text = source.text.toString().getBytes(StandardCharsets.UTF_8);
+                if (source.file != null) { // the rest of a flushed source
+                    try (FileOutputStream out = source.file) {
+                        out.write(text);
+                    } catch (IOException e) {
+                        errors.format("ERROR: writing to file %s: %s", source.fname, e.getMessage());
+                    }
+                } else if (!deferred) {
+                    try (FileOutputStream out = new FileOutputStream(source.fname)) {
+                        out.write(text);
+                    } catch (IOException e) {
+                        errors.format("ERROR: unable to create file %s: %s", source.fname, e.getMessage());
+                    }
+                }
+                if (recorded != null) {
+                    recorded.add(new Output(source.fname, false, "", "", text, 0));
+                }
+            }
+            sources.clear();
+            outputStart = byteCount;
+            file = null;
+            fname = null;
+            packing = Packer.NONE;
+            fileText.setLength(0);
+            warnings.setLength(0);
+            fileByteCount = 0;
+            if (consoleText.length() > 0) {
+                console.append(consoleText);
+                console.flush();
+                consoleText.setLength(0);
+            }
+        }
+
+        /** prints warning 'str' on stderr, or keeps it when capturing */
+        void warning(String str) {
+            warnings.append(str);
+            if (capturedWarnings != null) {
+                capturedWarnings.add(str.trim());
+            } else {
+                errors.print(str);
+            }
+        }
+
+        /** keeps all outputs from now on, see recorded() */
+        void record() {
+            if (recorded == null) {
+                recorded = new ArrayList<>();
+            }
+        }
+
+        /** returns the outputs written since record() */
+        List<Output> recorded() {
+            close();
+            return recorded;
+        }
+
+        /** writes 'outputs' again */
+        void replay(List<Output> outputs) throws IOException {
+            close();
+            for (Output output : outputs) {
+                if (output.fname != null) {
+                    try (FileOutputStream out = new FileOutputStream(output.fname)) {
+                        out.write(output.fileData);
+                    }
+                }
+                console.append(output.consoleText);
+                errors.print(output.warnings);
+                byteCount += output.byteCount;
+                if (recorded != null) {
+                    recorded.add(output);
+                }
+            }
+            console.flush();
+        }
+    }
+
+    /**
+     * Packs binary files so they take less disk space and load faster, see depack.asm for the matching depackers.
+     * <p>
+     * RLE: control byte $00-$7f copies the next n+1 bytes, $80-$fe repeats the next byte n-$7e times, $ff ends.
+     * <p>
+     * LZ: control byte $01-$7f copies the next n bytes, $80-$ff copies (n&$7f)+3 bytes from 'offset' bytes back
+     * in the output with the 16-bit offset following (low byte first), $00 ends. Matches can overlap their copy.
+     */
+    static final class Packer {
+        static final int NONE = 0;
+        static final int RLE = 1;
+        static final int LZ = 2;
+        static final int BEST = 3; // smallest of RLE and LZ
+
+        private static final int MAX_LITERALS_RLE = 128;
+        private static final int MAX_RUN = 128;
+        private static final int MAX_LITERALS_LZ = 127;
+        private static final int MIN_MATCH = 4; // a match of 3 costs as much as the literals
+        private static final int MAX_MATCH = 130;
+        private static final int MAX_OFFSET = 0xffff;
+        private static final int HASH_BITS = 15;
+        private static final int MAX_CHAIN = 256; // candidates tried per position, bounds the time on big maps
+
+        /** Packed data and the format used */
+        static final class Packed {
+            final int format;
+            final byte[] data;
+
+            Packed(int format, byte[] data) {
+                this.format = format;
+                this.data = data;
+            }
+
+            /** returns the file name extension for the format */
+            String extension() {
+                return format == RLE ? ".rle" : ".lz";
+            }
+        }
+
+        /** packs the first 'len' bytes of 'data' with 'packing' (RLE, LZ or BEST) */
+        static Packed pack(byte[] data, int len, int packing) {
+            if (packing == RLE) {
+                return new Packed(RLE, rle(data, len));
+            }
+            byte[] lz = lz(data, len);
+            if (packing == BEST) {
+                byte[] rle = rle(data, len);
+                if (rle.length < lz.length) {
+                    return new Packed(RLE, rle);
+                }
+            }
+            return new Packed(LZ, lz);
+        }
+
+        static byte[] rle(byte[] data, int len) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(len / 2 + 16);
+            int literals = 0; // start of pending literals
+            int i = 0;
+            while (i < len) {
+                int run = 1;
+                while (i + run < len && run < MAX_RUN && data[i + run] == data[i]) {
+                    run++;
+                }
+                if (run >= 3) {
+                    rleLiterals(out, data, literals, i);
+                    out.write(0x80 + run - 2);
+                    out.write(data[i]);
+                    i += run;
+                    literals = i;
+                } else {
+                    i++;
+                    if (i - literals == MAX_LITERALS_RLE) {
+                        rleLiterals(out, data, literals, i);
+                        literals = i;
+                    }
+                }
+            }
+            rleLiterals(out, data, literals, len);
+            out.write(0xff);
+            return out.toByteArray();
+        }
+
+        private static void rleLiterals(ByteArrayOutputStream out, byte[] data, int from, int to) {
+            if (to > from) {
+                out.write(to - from - 1);
+                out.write(data, from, to - from);
+            }
+        }
+
+        static byte[] lz(byte[] data, int len) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(len / 2 + 16);
+            int[] head = new int[1 << HASH_BITS]; // last position + 1 per hash of 3 bytes, 0 if none
+            int[] previous = new int[len]; // earlier position + 1 with the same hash, 0 if none
+            int literals = 0;
+            int i = 0;
+            while (i < len) {
+                int best = 0;
+                int bestOffset = 0;
+                if (i + MIN_MATCH <= len) {
+                    int limit = Math.min(MAX_MATCH, len - i);
+                    int candidate = head[hash(data, i)] - 1;
+                    for (int chain = 0; candidate >= 0 && i - candidate <= MAX_OFFSET && chain < MAX_CHAIN; chain++) {
+                        if (data[candidate + best] == data[i + best]) { // can't be longer otherwise
+                            int n = 0;
+                            while (n < limit && data[candidate + n] == data[i + n]) {
+                                n++;
+                            }
+                            if (n > best) {
+                                best = n;
+                                bestOffset = i - candidate;
+                                if (n == limit) {
+                                    break;
+                                }
+                            }
+                        }
+                        candidate = previous[candidate] - 1;
+                    }
+                }
+                if (best >= MIN_MATCH) {
+                    lzLiterals(out, data, literals, i);
+                    out.write(0x80 + best - 3);
+                    out.write(bestOffset);
+                    out.write(bestOffset >> 8);
+                    for (int end = i + best; i < end; i++) {
+                        insert(data, len, i, head, previous);
+                    }
+                    literals = i;
+                } else {
+                    insert(data, len, i, head, previous);
+                    i++;
+                    if (i - literals == MAX_LITERALS_LZ) {
+                        lzLiterals(out, data, literals, i);
+                        literals = i;
+                    }
+                }
+            }
+            lzLiterals(out, data, literals, len);
+            out.write(0x00);
+            return out.toByteArray();
+        }
+
+        private static int hash(byte[] data, int i) {
+            int h = (data[i] & 0xff) | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff) << 16;
+            return (h * 0x9E3779B1) >>> (32 - HASH_BITS);
+        }
+
+        /** adds position 'i' to the hash chains */
+        private static void insert(byte[] data, int len, int i, int[] head, int[] previous) {
+            if (i + 3 <= len) {
+                int h = hash(data, i);
+                previous[i] = head[h];
+                head[h] = i + 1;
+            }
+        }
+
+        private static void lzLiterals(ByteArrayOutputStream out, byte[] data, int from, int to) {
+            if (to > from) {
+                out.write(to - from);
+                out.write(data, from, to - from);
+            }
+        }
+    }
+
+    /** Watches files for -watch, reporting changes once they have settled */
+    static final class Watcher implements Closeable {
+        private final WatchService service = FileSystems.getDefault().newWatchService();
+        private final Set<Path> dirs = new HashSet<>();
+        private final Set<Path> files = new HashSet<>();
+
+        Watcher() throws IOException {
+        }
+
+        static Path path(File file) {
+            return file.toPath().toAbsolutePath().normalize();
+        }
+
+        /** starts watching 'file' (only once) */
+        void watch(File file) throws IOException {
+            Path path = path(file);
+            if (files.add(path) && dirs.add(path.getParent())) {
+                path.getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+        }
+
+        /** waits until watched files change and no more changes arrive for a while, and returns the changed files */
+        Set<Path> awaitChanges() throws InterruptedException {
+            Set<Path> changed = new HashSet<>();
+            WatchKey key = service.take();
+            while (key != null) {
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.context() instanceof Path) {
+                        Path path = dir.resolve((Path) event.context()).normalize();
+                        if (files.contains(path)) {
+                            changed.add(path);
+                        }
+                    }
+                }
+                key.reset();
+                key = service.poll(WATCH_QUIET_MILLIS, TimeUnit.MILLISECONDS);
+                if (key == null && changed.isEmpty()) {
+                    key = service.take(); // only changes to other files in the watched folders
+                }
+            }
+            return changed;
+        }
+
+        @Override
+        public void close() throws IOException {
+            service.close();
+        }
+    }
+
+    /** Outputs of earlier conversions on disk, keyed by a hash of the input file, the settings and VERSION */
+    static final class Cache {
+        private static final int MAGIC = 0x53324145; // "S2AE"
+        private static final String HEADER = "\u0000header\u0000"; // stands for the header line in stored text
+
+        private final File dir;
+
+        Cache(File dir) {
+            this.dir = dir;
+        }
+
+        /** returns the key for converting 'input' with 'settings' */
+        static String key(String settings, File input) throws IOException {
+            MessageDigest digest = sha256();
+            digest.update(String.format("%d|%s|%s|", VERSION, settings, input.getName()).getBytes(StandardCharsets.UTF_8));
+            digest.update(Files.readAllBytes(input.toPath()));
+            return hex(digest.digest());
+        }
+
+        /** returns the hash of the contents of 'file' */
+        static String hash(File file) throws IOException {
+            return hex(sha256().digest(Files.readAllBytes(file.toPath())));
+        }
+
+        static MessageDigest sha256() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static String hex(byte[] bytes) {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : bytes) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        }
+
+        /**
+         * returns the outputs stored for 'key' with 'header' as their header line, or null if there are none or a dependency
+         * has changed, warning on 'err'
+         */
+        List<Emitter.Output> load(String key, String header, PrintStream err) {
+            File entry = new File(dir, key);
+            if (!entry.isFile()) {
+                return null;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)))) {
+                if (in.readInt() != MAGIC) {
+                    return null;
+                }
+                int dependencyCount = in.readInt();
+                for (int i = 0; i < dependencyCount; i++) {
+                    File dependency = new File(in.readUTF());
+                    String hash = in.readUTF();
+                    if (!dependency.isFile() || !hash.equals(hash(dependency))) {
+                        return null;
+                    }
+                }
+                int outputCount = in.readInt();
+                List<Emitter.Output> outputs = new ArrayList<>(outputCount);
+                for (int i = 0; i < outputCount; i++) {
+                    String fname = in.readBoolean() ? in.readUTF() : null;
+                    boolean binary = in.readBoolean();
+                    String consoleText = new String(readBytes(in), StandardCharsets.UTF_8);
+                    String warnings = in.readUTF();
+                    byte[] fileData = fname != null ? readBytes(in) : null;
+                    outputs.add(new Emitter.Output(fname, binary, consoleText, warnings, fileData, in.readLong()));
+                }
+                return replace(outputs, HEADER, headerText(header));
+            } catch (IOException e) {
+                err.format("WARNING: ignoring unreadable cache entry %s: %s%n", entry, e.getMessage());
+                return null;
+            }
+        }
+
+        /** returns 'header' without its comment sign and line break, so it matches the header in any dialect */
+        private static String headerText(String header) {
+            return header.substring(Math.min(header.length(), Dialect.ACME.comment.length())).trim();
+        }
+
+        /** returns 'outputs' with 'target' replaced by 'replacement' in their text */
+        private static List<Emitter.Output> replace(List<Emitter.Output> outputs, String target, String replacement) {
+            if (target.isEmpty()) {
+                return outputs;
+            }
+            List<Emitter.Output> replaced = new ArrayList<>(outputs.size());
+            for (Emitter.Output output : outputs) {
+                byte[] fileData = output.fileData;
+                if (fileData != null && !output.binary) {
+                    fileData = new String(fileData, StandardCharsets.UTF_8).replace(target, replacement).getBytes(StandardCharsets.UTF_8);
+                }
+                replaced.add(new Emitter.Output(output.fname, output.binary, output.consoleText.replace(target, replacement),
+                        output.warnings, fileData, output.byteCount));
+            }
+            return replaced;
+        }
+
+        private static byte[] readBytes(DataInputStream in) throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        /**
+         * stores 'outputs' for 'key', valid as long as the contents of 'dependencies' don't change; their 'header' line
+         * is left out, so a restored conversion gets a header of its own
+         */
+        void store(String key, List<File> dependencies, String header, List<Emitter.Output> outputs) throws IOException {
+            outputs = replace(outputs, headerText(header), HEADER);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("unable to create cache directory " + dir);
+            }
+            File temp = File.createTempFile(key, ".tmp", dir);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(dependencies.size());
+                for (File dependency : dependencies) {
+                    out.writeUTF(dependency.getCanonicalPath());
+                    out.writeUTF(hash(dependency));
+                }
+                out.writeInt(outputs.size());
+                for (Emitter.Output output : outputs) {
+                    out.writeBoolean(output.fname != null);
+                    if (output.fname != null) {
+                        out.writeUTF(output.fname);
+                    }
+                    out.writeBoolean(output.binary);
+                    byte[] consoleText = output.consoleText.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(consoleText.length);
+                    out.write(consoleText);
+                    out.writeUTF(output.warnings);
+                    if (output.fname != null) {
+                        out.writeInt(output.fileData.length);
+                        out.write(output.fileData);
+                    }
+                    out.writeLong(output.byteCount);
+                }
+            }
+            // replace atomically, other conversions may be reading this entry
+            Files.move(temp.toPath(), new File(dir, key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Keeps a warmed-up JVM around for -client, so builds that convert many small files don't pay for starting,
+     * loading and compiling every time. The server listens on a Unix-domain socket in the folder it is started in
+     * and resolves relative paths from there, so clients use it when run from that same folder.
+     * <p>
+     * Request: the program name, the number of arguments and the arguments, as UTF strings and an int.
+     * Response: frames of a channel byte (OUT or ERR), a length and that many bytes, ended by EXIT with the exit code.
+     */
+    static final class Server {
+        static final Path SOCKET = Path.of(".sprite2asm.sock");
+        private static final int EXIT = 0;
+        private static final int OUT = 1;
+        private static final int ERR = 2;
+
+        /** serves requests until the process is stopped */
+        static void serve() throws IOException {
+            Path socket = SOCKET.toAbsolutePath();
+            if (Files.exists(socket)) {
+                try {
+                    SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+                    throw new IllegalStateException("server already running on " + socket);
+                } catch (IOException e) {
+                    Files.delete(socket); // left behind by a server that was killed
+                }
+            }
+            warmup();
+            // a thread per connection, requests mostly wait on files; these could be virtual threads from Java 21
+            ExecutorService connections = Executors.newCachedThreadPool();
+            try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+                server.bind(UnixDomainSocketAddress.of(socket));
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> socket.toFile().delete()));
+                System.err.format("serving on %s%n", socket);
+                while (true) {
+                    SocketChannel client = server.accept();
+                    connections.execute(() -> handle(client));
+                }
+            } finally {
+                connections.shutdownNow();
+            }
+        }
+
+        /** converts a generated screen and sprite sheet a few times, so the first requests run compiled code */
+        private static void warmup() throws IOException {
+            byte[] r = new byte[16], g = new byte[16], b = new byte[16];
+            for (int i = 0; i < 16; i++) {
+                r[i] = (byte) (i * 17);
+                g[i] = (byte) (i * 33);
+                b[i] = (byte) (i * 71);
+            }
+            BufferedImage image = new BufferedImage(320, 200, BufferedImage.TYPE_BYTE_BINARY, new IndexColorModel(4, 16, r, g, b));
+            Random random = new Random(1);
+            for (int y = 0; y < 200; y += 8) {
+                for (int x = 0; x < 320; x += 8) {
+                    long bits = random.nextInt(64) * 0x9e3779b97f4a7c15L; // 64 different chars
+                    int color = 1 + (int) ((bits >>> 60) % 15);
+                    for (int i = 0; i < 64; i++) {
+                        image.getRaster().setSample(x + (i & 7), y + (i >> 3), 0, (bits >>> i & 1) != 0 ? color : 0);
+                    }
+                }
+            }
+            for (int i = 0; i < 20; i++) {
+                convert(image, Options.DEFAULTS.withBgCol(0).withChOffset(0).withColormap(0));
+                convert(image, Options.DEFAULTS.withBgCol(0).withMulticolor(1, 2).withDedup(true));
+            }
+        }
+
+        private static void handle(SocketChannel client) {
+            try (client;
+                 DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)))) {
+                String program = in.readUTF();
+                String[] args = new String[in.readInt()];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = in.readUTF();
+                }
+                PrintStream console = new PrintStream(new Frames(out, OUT));
+                PrintStream errors = new PrintStream(new Frames(out, ERR));
+                int exitCode = 0;
+                try {
+                    if (program.equals("Ldtk2asm")) {
+                        Ldtk2asm.run(args, console, errors);
+                    } else {
+                        run(args, console, errors);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace(errors);
+                    exitCode = 1;
+                }
+                console.flush();
+                errors.flush();
+                synchronized (out) {
+                    out.writeByte(EXIT);
+                    out.writeInt(exitCode);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                System.err.format("ERROR: serving client: %s%n", e);
+            }
+        }
+
+        /** Sends what is written as frames of 'channel', batches can write from more threads */
+        private static final class Frames extends OutputStream {
+            private final DataOutputStream out;
+            private final int channel;
+
+            Frames(DataOutputStream out, int channel) {
+                this.out = out;
+                this.channel = channel;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                synchronized (out) {
+                    out.writeByte(channel);
+                    out.writeInt(len);
+                    out.write(b, off, len);
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                synchronized (out) {
+                    out.flush();
+                }
+            }
+        }
+
+        /**
+         * runs 'program' with 'args' on the server in this folder and exits like it would, or returns false if
+         * there is no server or with -watch, which keeps running here
+         */
+        static boolean request(String program, String[] args) throws IOException {
+            if (!Files.exists(SOCKET) || Arrays.stream(args).anyMatch(arg -> WATCHPATTERN.matcher(arg).matches())) {
+                return false;
+            }
+            SocketChannel server;
+            try {
+                server = SocketChannel.open(UnixDomainSocketAddress.of(SOCKET));
+            } catch (IOException e) {
+                return false; // stale socket of a server that was killed
+            }
+            try (server;
+                 DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(server)));
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(server)))) {
+                out.writeUTF(program);
+                out.writeInt(args.length);
+                for (String arg : args) {
+                    out.writeUTF(arg);
+                }
+                out.flush();
+                while (true) {
+                    int channel = in.readByte();
+                    if (channel == EXIT) {
+                        int exitCode = in.readInt();
+                        System.out.flush();
+                        if (exitCode != 0) {
+                            System.exit(exitCode);
+                        }
+                        return true;
+                    }
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    (channel == OUT ? System.out : System.err).write(data);
+                }
+            }
+        }
+    }
+
+}